@@ -7,26 +7,26 @@ import fi.helsinki.cs.tmc.core.utilities.ServerErrorHelper;
 import fi.helsinki.cs.tmc.core.events.TmcEvent;
 import fi.helsinki.cs.tmc.coreimpl.BridgingProgressObserver;
 import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.model.BatchProjectOpener;
 import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.DownloadScheduler;
+import fi.helsinki.cs.tmc.model.ExerciseArchiveCache;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
-import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
-import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
-import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
 import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
 
 import com.google.common.collect.Lists;
 
-import java.util.Collection;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
 
-import org.openide.util.Exceptions;
-
 /**
  * Downloads and opens the given exercises in the background.
  */
@@ -36,6 +36,8 @@ public class DownloadExercisesAction {
 
     private CourseDb courseDb;
     private ProjectMediator projectMediator;
+    private ExerciseArchiveCache archiveCache;
+    private DownloadScheduler downloadScheduler;
     private ConvenientDialogDisplayer dialogs;
     private TmcEventBus eventBus;
 
@@ -44,6 +46,8 @@ public class DownloadExercisesAction {
     public DownloadExercisesAction(List<Exercise> exercisesToOpen) {
         this.courseDb = CourseDb.getInstance();
         this.projectMediator = ProjectMediator.getInstance();
+        this.archiveCache = ExerciseArchiveCache.getInstance();
+        this.downloadScheduler = DownloadScheduler.getInstance();
         this.dialogs = ConvenientDialogDisplayer.getDefault();
         this.eventBus = TmcEventBus.getDefault();
 
@@ -51,82 +55,73 @@ public class DownloadExercisesAction {
     }
 
     public void run() {
-        final AggregatingBgTaskListener<TmcProjectInfo> aggregator
-                = new AggregatingBgTaskListener<TmcProjectInfo>(exercisesToDownload.size(), whenAllDownloadsFinished);
+        final BatchProjectOpener opener = new BatchProjectOpener(exercisesToDownload.size(), false, () -> {
+            SwingUtilities.invokeLater(() -> {
+                new CheckProjectCount().checkAndNotifyIfOver();
+            });
+        });
+        // Only the first failure is shown so that a lost connection doesn't bring up a dialog per exercise.
+        final AtomicBoolean errorShown = new AtomicBoolean(false);
 
         for (final Exercise exercise : exercisesToDownload) {
             eventBus.post(new InvokedEvent(exercise));
-            startDownloading(exercise, aggregator);
+            startDownloading(exercise, opener, errorShown);
         }
     }
 
-    private void startDownloading(final Exercise exercise, final BgTaskListener<TmcProjectInfo> listener) {
+    private void startDownloading(final Exercise exercise, final BatchProjectOpener opener, final AtomicBoolean errorShown) {
 
         ProgressObserver observer = new BridgingProgressObserver();
 
-        Callable<List<Exercise>> downloadExercisesTask = TmcCore.get().downloadOrUpdateExercises(observer, Lists.newArrayList(exercise));
+        final Callable<List<Exercise>> coreDownloadTask = TmcCore.get().downloadOrUpdateExercises(observer, Lists.newArrayList(exercise));
+        Callable<List<Exercise>> downloadExercisesTask = () -> {
+            // A project that already exists may have the student's changes, so only new ones come from the cache.
+            Path projectDir = projectMediator.getProjectDirForExercise(exercise);
+            if (Files.exists(projectDir)) {
+                return coreDownloadTask.call();
+            }
+            if (archiveCache.tryRestore(exercise, projectDir)) {
+                return Lists.newArrayList(exercise);
+            }
+            List<Exercise> result = coreDownloadTask.call();
+            if (!result.isEmpty()) {
+                archiveCache.store(exercise, projectDir);
+            }
+            return result;
+        };
 
-        BgTask.start("Downloading " + exercise.getName(), downloadExercisesTask, observer, new BgTaskListener<List<Exercise>>() {
+        downloadScheduler.submit("Downloading " + exercise.getName(), exercise, downloadExercisesTask, observer, new BgTaskListener<List<Exercise>>() {
             @Override
             public void bgTaskReady(List<Exercise> result) {
-                try {
-                    logger.warning("res: " + result);
-                    // There is only one exercise given as parameter.
-                    if (result.isEmpty()) {
-                        logger.log(Level.INFO, "Download task returned an empty list");
-                        return;
-                    }
-                    TmcProjectInfo proj = projectMediator.tryGetProjectForExercise(result.get(0));
-                    
-                    if (proj == null) {
-                        throw new RuntimeException("Failed to open project for exercise " + exercise.getName());
-                    }
-
-                    // Need to invoke courseDb in swing thread to avoid races
-                    TmcSwingUtilities.ensureEdt(() -> {
-                        courseDb.exerciseDownloaded(exercise);
-                    });
-                    listener.bgTaskReady(proj);
-
-                } catch (RuntimeException ex) {
-                    Exceptions.printStackTrace(ex);
+                // There is only one exercise given as parameter.
+                if (result.isEmpty()) {
+                    logger.log(Level.INFO, "Download task returned an empty list");
+                    return;
                 }
+
+                // Need to invoke courseDb in swing thread to avoid races
+                TmcSwingUtilities.ensureEdt(() -> {
+                    courseDb.exerciseDownloaded(exercise);
+                });
+                opener.exerciseReady(result.get(0));
             }
 
             @Override
             public void bgTaskCancelled() {
-                listener.bgTaskCancelled();
             }
 
             @Override
             public void bgTaskFailed(Throwable ex) {
-                listener.bgTaskFailed(ex);
+                logger.log(Level.INFO, "Failed to download exercise file.", ex);
+                if (errorShown.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(() -> {
+                        dialogs.displayError("Failed to download exercises.\n" + ServerErrorHelper.getServerExceptionMsg(ex));
+                    });
+                }
             }
-        });
+        }, opener.finishTask());
     }
 
-    private BgTaskListener<Collection<TmcProjectInfo>> whenAllDownloadsFinished = new BgTaskListener<Collection<TmcProjectInfo>>() {
-        @Override
-        public void bgTaskReady(Collection<TmcProjectInfo> projects) {
-            projectMediator.openProjects(projects);
-            SwingUtilities.invokeLater(() -> {
-                new CheckProjectCount().checkAndNotifyIfOver();
-            });
-        }
-
-        @Override
-        public void bgTaskCancelled() {
-        }
-
-        @Override
-        public void bgTaskFailed(Throwable ex) {
-            logger.log(Level.INFO, "Failed to download exercise file.", ex);
-            SwingUtilities.invokeLater(() -> {
-                dialogs.displayError("Failed to download exercises.\n" + ServerErrorHelper.getServerExceptionMsg(ex));
-            });
-        }
-    };
-
     public static class InvokedEvent implements TmcEvent {
 
         public final Exercise exercise;
@@ -3,12 +3,22 @@ package fi.helsinki.cs.tmc.actions;
 import fi.helsinki.cs.tmc.core.TmcCore;
 import fi.helsinki.cs.tmc.core.domain.ProgressObserver;
 import fi.helsinki.cs.tmc.coreimpl.BridgingProgressObserver;
+import fi.helsinki.cs.tmc.snapshotsLocal.SnapshotMetrics;
+import fi.helsinki.cs.tmc.snapshotsLocal.SnapshotsFacade;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class SendDiagnostics {
+    private static final Logger log = Logger.getLogger(SendDiagnostics.class.getName());
     
     public void run() {
+        SnapshotMetrics metrics = SnapshotsFacade.getMetrics();
+        if (metrics != null) {
+            log.log(Level.INFO, "Snapshot metrics:\n{0}", metrics.getReport());
+        }
+
         ProgressObserver observer = new BridgingProgressObserver();
         Callable<Void> sendDiagnostics = TmcCore.get().sendDiagnostics(observer);
         BgTask.start("Sending diagnostics", sendDiagnostics);
@@ -0,0 +1,42 @@
+package fi.helsinki.cs.tmc.actions;
+
+import fi.helsinki.cs.tmc.snapshotsLocal.SnapshotMetrics;
+import fi.helsinki.cs.tmc.snapshotsLocal.SnapshotsFacade;
+import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
+import fi.helsinki.cs.tmc.ui.LongTextDisplayPanel;
+
+import java.awt.event.ActionEvent;
+import javax.swing.AbstractAction;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.openide.NotifyDescriptor;
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionReferences;
+import org.openide.awt.ActionRegistration;
+import org.openide.util.NbBundle.Messages;
+
+/**
+ * Shows how much work the snapshot subsystem has done in this session.
+ */
+@ActionID(category = "TMC",
+        id = "fi.helsinki.cs.tmc.actions.ShowSnapshotDiagnosticsAction")
+@ActionRegistration(displayName = "#CTL_ShowSnapshotDiagnosticsAction")
+@ActionReferences({
+    @ActionReference(path = "Menu/TM&C", position = 55)
+})
+@Messages("CTL_ShowSnapshotDiagnosticsAction=Snapshot diagnostics")
+public class ShowSnapshotDiagnosticsAction extends AbstractAction {
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        ConvenientDialogDisplayer dialogs = ConvenientDialogDisplayer.getDefault();
+        SnapshotMetrics metrics = SnapshotsFacade.getMetrics();
+        if (metrics == null) {
+            dialogs.displayMessage("Snapshots are not being recorded.");
+            return;
+        }
+
+        String html = "<html><pre>" + StringEscapeUtils.escapeHtml4(metrics.getReport()) + "</pre></html>";
+        dialogs.showDialog(new LongTextDisplayPanel(html), NotifyDescriptor.INFORMATION_MESSAGE, "Snapshot diagnostics", false);
+    }
+}
@@ -7,6 +7,7 @@ import fi.helsinki.cs.tmc.core.holders.TmcLangsHolder;
 import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
 import fi.helsinki.cs.tmc.coreimpl.TmcCoreSettingsImpl;
 import fi.helsinki.cs.tmc.langs.util.TaskExecutorImpl;
+import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.snapshotsLocal.SnapshotsFacade;
 import fi.helsinki.cs.tmc.tasks.LoginTask;
 import fi.helsinki.cs.tmc.utilities.BgTask;
@@ -134,6 +135,11 @@ public class TmcModuleInstall extends ModuleInstall {
         } catch (Exception e) {
             log.log(Level.WARNING, "Failed to close SnapshotsFacade.", e);
         }
+        try {
+            CourseDb.getInstance().flush();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Failed to save course database.", e);
+        }
     }
 
     private void doFirstRun() {
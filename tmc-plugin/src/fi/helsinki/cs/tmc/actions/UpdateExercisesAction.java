@@ -6,12 +6,13 @@ import fi.helsinki.cs.tmc.core.domain.ProgressObserver;
 import fi.helsinki.cs.tmc.core.utilities.ServerErrorHelper;
 import fi.helsinki.cs.tmc.core.events.TmcEvent;
 import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.model.BatchProjectOpener;
 import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.DownloadScheduler;
+import fi.helsinki.cs.tmc.model.ExerciseArchiveCache;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
-import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.TemplateDeltaUpdater;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
-import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
-import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
 
 import com.google.common.collect.ImmutableList;
@@ -19,10 +20,11 @@ import com.google.common.collect.ImmutableList;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
 
@@ -33,15 +35,28 @@ public class UpdateExercisesAction implements ActionListener {
     private List<Exercise> exercisesToUpdate;
     private CourseDb courseDb;
     private ProjectMediator projectMediator;
+    private ExerciseArchiveCache archiveCache;
+    private TemplateDeltaUpdater deltaUpdater;
+    private DownloadScheduler downloadScheduler;
     private ConvenientDialogDisplayer dialogDisplayer;
     private TmcEventBus eventBus;
 
     public UpdateExercisesAction(List<Exercise> exercisesToUpdate) {
+        this(exercisesToUpdate, CourseDb.getInstance(), ProjectMediator.getInstance(), ExerciseArchiveCache.getInstance(),
+                DownloadScheduler.getInstance(), ConvenientDialogDisplayer.getDefault(), TmcEventBus.getDefault());
+    }
+
+    /*package*/ UpdateExercisesAction(List<Exercise> exercisesToUpdate, CourseDb courseDb, ProjectMediator projectMediator,
+            ExerciseArchiveCache archiveCache, DownloadScheduler downloadScheduler,
+            ConvenientDialogDisplayer dialogDisplayer, TmcEventBus eventBus) {
         this.exercisesToUpdate = exercisesToUpdate;
-        this.courseDb = CourseDb.getInstance();
-        this.projectMediator = ProjectMediator.getInstance();
-        this.dialogDisplayer = ConvenientDialogDisplayer.getDefault();
-        this.eventBus = TmcEventBus.getDefault();
+        this.courseDb = courseDb;
+        this.projectMediator = projectMediator;
+        this.archiveCache = archiveCache;
+        this.deltaUpdater = new TemplateDeltaUpdater();
+        this.downloadScheduler = downloadScheduler;
+        this.dialogDisplayer = dialogDisplayer;
+        this.eventBus = eventBus;
     }
 
     @Override
@@ -50,62 +65,67 @@ public class UpdateExercisesAction implements ActionListener {
     }
 
     public void run() {
-        final AggregatingBgTaskListener<TmcProjectInfo> projectOpener = new AggregatingBgTaskListener<TmcProjectInfo>(exercisesToUpdate.size(), new BgTaskListener<Collection<TmcProjectInfo>>() {
-            @Override
-            public void bgTaskReady(Collection<TmcProjectInfo> result) {
-                result = new ArrayList<>(result);
-
-                // result may contain nulls since some downloads might fail
-                while (result.remove(null)) {
-                }
-
-                projectMediator.scanForExternalChanges(result);
-
-                // Open all at once. This is much faster.
-                projectMediator.openProjects(result);
-            }
-
-            // Cancelled and failed are never called since we only call bgTaskReady below manually
-            @Override
-            public void bgTaskCancelled() {
-            }
-
-            @Override
-            public void bgTaskFailed(Throwable ex) {
-            }
-        });
+        // Projects are opened in batches as their updates finish. Opening many at once is much faster.
+        final BatchProjectOpener projectOpener = new BatchProjectOpener(exercisesToUpdate.size(), true, () -> {});
 
         for (final Exercise exercise : exercisesToUpdate) {
             final File projectDir = projectMediator.getProjectDirForExercise(exercise).toFile();
             eventBus.post(new InvokedEvent(exercise));
 
-            Callable<List<Exercise>> downloadAndExtractExerciseTask = TmcCore.get().downloadOrUpdateExercises(ProgressObserver.NULL_OBSERVER, ImmutableList.of(exercise));
-            BgTask.start("Downloading " + exercise.getName(), downloadAndExtractExerciseTask, new BgTaskListener<List<Exercise>>() {
+            Callable<List<Exercise>> coreUpdateTask = TmcCore.get().downloadOrUpdateExercises(ProgressObserver.NULL_OBSERVER, ImmutableList.of(exercise));
+            Callable<List<Exercise>> downloadAndExtractExerciseTask = updateTask(exercise, projectDir.toPath(), coreUpdateTask);
+            downloadScheduler.submit("Downloading " + exercise.getName(), exercise, downloadAndExtractExerciseTask, ProgressObserver.NULL_OBSERVER, new BgTaskListener<List<Exercise>>() {
 
                 @Override
                 public void bgTaskReady(List<Exercise> exercises) {
                     courseDb.exerciseDownloaded(exercise);
-                    TmcProjectInfo project = projectMediator.tryGetProjectForExercise(exercise);
-                    projectOpener.bgTaskReady(project);
+                    projectOpener.exerciseReady(exercise);
                 }
 
                 @Override
                 public void bgTaskCancelled() {
-                    projectOpener.bgTaskReady(null);
                 }
 
                 @Override
                 public void bgTaskFailed(Throwable ex) {
-                    projectOpener.bgTaskReady(null);
                     String msg = ServerErrorHelper.getServerExceptionMsg(ex);
                     SwingUtilities.invokeLater(() -> {
                         dialogDisplayer.displayError("Failed to download updated exercises.\n" + msg, ex);
                     });
                 }
-            });
+            }, projectOpener.finishTask());
         }
     }
 
+    /*package*/ Callable<List<Exercise>> updateTask(final Exercise exercise, final Path projectDir, final Callable<List<Exercise>> coreUpdateTask) {
+        final String installedChecksum = courseDb.getDownloadedExerciseChecksum(exercise.getKey());
+        return () -> {
+            // If both template versions are cached, only the files that changed need to be written.
+            Path oldArchive = archiveCache.tryGetTemplateFiles(installedChecksum);
+            Path newArchive = archiveCache.tryGetArchive(exercise.getChecksum());
+            if (oldArchive != null && newArchive != null) {
+                try {
+                    TemplateDeltaUpdater.Result result = deltaUpdater.update(oldArchive, newArchive, projectDir);
+                    log.log(Level.INFO, "Updated {0} from cached templates: {1}", new Object[] {exercise.getName(), result});
+                    return ImmutableList.of(exercise);
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Failed to update " + exercise.getName() + " from cached templates", ex);
+                }
+            }
+
+            List<Exercise> result = coreUpdateTask.call();
+            if (!result.isEmpty()) {
+                // Lets the next update be done from the cache if the version after this one is cached.
+                try {
+                    archiveCache.storeTemplateFiles(exercise, projectDir, TemplateDeltaUpdater.StudentFilePolicy.forProject(projectDir));
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Not caching the updated " + exercise.getName(), ex);
+                }
+            }
+            return result;
+        };
+    }
+
     public static class InvokedEvent implements TmcEvent {
 
         public final Exercise exercise;
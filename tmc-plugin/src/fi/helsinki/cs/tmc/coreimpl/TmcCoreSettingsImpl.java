@@ -42,6 +42,7 @@ public class TmcCoreSettingsImpl implements TmcSettings {
     private static final String PREF_ERROR_MSG_LOCALE = "errorMsgLocale";
     private static final String PREF_FIX_UNOPTIMAL_SETTINGS = "fixUnoptimalSettings";
     private static final String PREF_SEND_DIAGNOSTICS = "sendDiagnostics";
+    private static final String PREF_DELTA_SNAPSHOTS = "deltaSnapshots";
     private static final String PREF_OAUTH_TOKEN = "oauthToken";
     private static final String PREF_OAUTH_APPLICATION_ID = "oauthApplicationId";
     private static final String PREF_OAUTH_SECRET = "oauthSecret";
@@ -323,6 +324,18 @@ public class TmcCoreSettingsImpl implements TmcSettings {
         return settings.get(PREF_SEND_DIAGNOSTICS, "1").equals("1");
     }
 
+    /**
+     * Whether source snapshots should contain only the files changed since
+     * the previous snapshot of the project (with a full snapshot every now and then).
+     */
+    public boolean isSendingDeltaSnapshots() {
+        return settings.get(PREF_DELTA_SNAPSHOTS, "0").equals("1");
+    }
+
+    public void setSendingDeltaSnapshots(boolean value) {
+        settings.put(PREF_DELTA_SNAPSHOTS, value ? "1" : "0");
+    }
+
     @Override
     public Optional<String> getToken() {
         return Optional.fromNullable(settings.get(PREF_OAUTH_TOKEN, null));
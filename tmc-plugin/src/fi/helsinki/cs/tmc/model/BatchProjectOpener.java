@@ -0,0 +1,106 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.utilities.CoalescingTask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens the projects of downloaded exercises in small batches as the
+ * downloads finish, instead of waiting for the last one.
+ *
+ * <p>
+ * Exercises that become ready within {@link #DELAY} of each other are opened
+ * together, which is much faster than opening them one by one.
+ */
+public class BatchProjectOpener {
+    /*package*/ static final int DELAY = 300; // milliseconds
+
+    private final ProjectMediator projectMediator;
+    private final boolean scanForExternalChanges;
+    private final Runnable whenAllDone;
+    private final CoalescingTask openTask;
+    private final List<Exercise> ready; // guarded by this
+    private int remaining; // guarded by this
+    private boolean allDone; // guarded by this
+
+    /**
+     * @param expectedCount the number of exercises to wait for.
+     * @param scanForExternalChanges whether to refresh NetBeans' view of the
+     *                               files first, as when updating existing projects.
+     * @param whenAllDone called in a background thread after the last batch was opened.
+     */
+    public BatchProjectOpener(int expectedCount, boolean scanForExternalChanges, Runnable whenAllDone) {
+        this.projectMediator = ProjectMediator.getInstance();
+        this.scanForExternalChanges = scanForExternalChanges;
+        this.whenAllDone = whenAllDone;
+        this.openTask = new CoalescingTask("TMC project opener", DELAY, new Runnable() {
+            @Override
+            public void run() {
+                openReady();
+            }
+        });
+        this.ready = new ArrayList<Exercise>();
+        this.remaining = expectedCount;
+    }
+
+    /**
+     * Tells that the exercise has been downloaded and its project can be opened.
+     *
+     * <p>
+     * The project is opened once {@link #exerciseFinished()} has been called for it.
+     */
+    public synchronized void exerciseReady(Exercise exercise) {
+        ready.add(exercise);
+    }
+
+    /**
+     * Tells that one of the expected exercises is done with, whether or not
+     * it became ready. Must be called exactly once per expected exercise,
+     * e.g. from a <code>finally</code> block.
+     */
+    public void exerciseFinished() {
+        synchronized (this) {
+            remaining--;
+        }
+        openTask.request();
+    }
+
+    /**
+     * Returns a task that calls {@link #exerciseFinished()}.
+     */
+    public Runnable finishTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                exerciseFinished();
+            }
+        };
+    }
+
+    private void openReady() {
+        List<Exercise> batch;
+        boolean last;
+        synchronized (this) {
+            batch = new ArrayList<Exercise>(ready);
+            ready.clear();
+            last = (remaining == 0 && !allDone);
+            if (last) {
+                allDone = true;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            List<TmcProjectInfo> projects = projectMediator.tryGetProjectsForExercises(batch);
+            if (scanForExternalChanges) {
+                projectMediator.scanForExternalChanges(projects);
+            }
+            projectMediator.openProjects(projects);
+        }
+
+        if (last) {
+            whenAllDone.run();
+        }
+    }
+}
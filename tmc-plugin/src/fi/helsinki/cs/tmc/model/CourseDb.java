@@ -6,31 +6,59 @@ import fi.helsinki.cs.tmc.core.domain.ExerciseKey;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import fi.helsinki.cs.tmc.data.CourseListUtils;
 import fi.helsinki.cs.tmc.core.events.TmcEvent;
-import fi.helsinki.cs.tmc.core.persistance.ConfigFileIo;
 import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
+import fi.helsinki.cs.tmc.core.persistance.ConfigFileIo;
+import fi.helsinki.cs.tmc.utilities.CoalescingTask;
+import fi.helsinki.cs.tmc.utilities.TmcFileUtils;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.io.Writer;
+import java.io.StringWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Stores the list of available courses, the current course and its exercise list.
+ * 
+ * <p>
+ * Only the current course is read from disk at startup. The rest of the course
+ * list is read the first time something needs it.
  */
 public class CourseDb {
 
     public static class ChangedEvent implements TmcEvent {}
     
     public static final Logger logger = Logger.getLogger(CourseDb.class.getName());
+    
+    private static final String FILE_NAME = "CourseDb.json";
+    private static final int SAVE_DELAY = 1000; // milliseconds
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Gson GSON = new GsonBuilder()
+            .serializeNulls()
+            .registerTypeAdapter(ExerciseKey.class, new ExerciseKey.GsonAdapter())
+            .create();
+    private static final Type CHECKSUMS_TYPE = new TypeToken<Map<ExerciseKey, String>>() {}.getType();
+    private static final Type COURSE_LIST_TYPE = new TypeToken<List<Course>>() {}.getType();
+    
     private static CourseDb defaultInstance;
     
     public static synchronized CourseDb getInstance() {
@@ -41,39 +69,104 @@ public class CourseDb {
     }
 
     private TmcEventBus eventBus;
-    private ConfigFileIo configFile;
-    private List<Course> availableCourses;
+    private Path file;
+    private CoalescingTask saveTask;
+    private List<Course> availableCourses; // Only the current course until allCoursesLoaded
+    private volatile boolean allCoursesLoaded;
     private String currentCourseName;
     private Map<ExerciseKey, String> downloadedExerciseChecksums;
+    private volatile Index index;
+    private final AtomicInteger changeCount = new AtomicInteger();
 
     private CourseDb() {
-        this(TmcEventBus.getDefault(), new ConfigFileIo("CourseDb.json"));
+        this(TmcEventBus.getDefault(), defaultFile());
     }
     
-    public CourseDb(TmcEventBus eventBus, ConfigFileIo configFile) {
+    private static Path defaultFile() {
+        Path file = TmcSettingsHolder.get().getConfigRoot().resolve(FILE_NAME);
+        migrateLegacyFile(new ConfigFileIo(FILE_NAME), file);
+        return file;
+    }
+    
+    /**
+     * Copies the database written through {@link ConfigFileIo} by older versions
+     * to {@code file} if there is nothing there yet.
+     * 
+     * <p>
+     * Normally both refer to the same file and this does nothing, but if they
+     * ever differ the downloaded checksums must not be lost on upgrade.
+     */
+    /*package*/ static void migrateLegacyFile(ConfigFileIo legacyFile, Path file) {
+        if (Files.exists(file)) {
+            return;
+        }
+        try {
+            if (!legacyFile.exists()) {
+                return;
+            }
+            StringWriter contents = new StringWriter();
+            Reader reader = legacyFile.getReader();
+            try {
+                char[] buf = new char[8192];
+                int n;
+                while ((n = reader.read(buf)) != -1) {
+                    contents.write(buf, 0, n);
+                }
+            } finally {
+                reader.close();
+            }
+            TmcFileUtils.writeAtomically(file, contents.toString().getBytes(UTF8));
+            logger.log(Level.INFO, "Migrated course database to {0}", file);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to migrate the old course database", e);
+        }
+    }
+    
+    public CourseDb(TmcEventBus eventBus, Path file) {
         this.eventBus = eventBus;
-        this.configFile = configFile;
+        this.file = file;
+        this.saveTask = new CoalescingTask("CourseDb saver", SAVE_DELAY, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    saveToFile();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to save course database", e);
+                }
+            }
+        });
         this.availableCourses = new ArrayList<Course>();
         this.currentCourseName = null;
         this.downloadedExerciseChecksums = new HashMap<ExerciseKey, String>();
+        this.allCoursesLoaded = false;
+        long startTime = System.currentTimeMillis();
         try {
             loadFromFile();
         } catch (Exception e) {
             logger.log(Level.WARNING, "Failed to load course database", e);
+            this.allCoursesLoaded = true;
         }
+        reindex();
+        logger.log(Level.INFO, "Loaded course database in {0} ms (rest of the course list deferred: {1})",
+                new Object[] { System.currentTimeMillis() - startTime, !allCoursesLoaded });
     }
     
     public List<Course> getAvailableCourses() {
+        ensureAllCoursesLoaded();
         return Collections.unmodifiableList(availableCourses);
     }
 
     public void setAvailableCourses(List<Course> availableCourses) {
-        this.availableCourses = availableCourses;
+        synchronized (this) {
+            this.availableCourses = availableCourses;
+            this.allCoursesLoaded = true;
+            reindex();
+        }
         save();
     }
 
     public Course getCurrentCourse() {
-        return CourseListUtils.getCourseByName(availableCourses, currentCourseName);
+        return index.currentCourse;
     }
 
     public String getCurrentCourseName() {
@@ -81,27 +174,36 @@ public class CourseDb {
     }
 
     public void setCurrentCourseName(String currentCourseName) {
-        this.currentCourseName = currentCourseName;
+        synchronized (this) {
+            if (currentCourseName != null && !index.coursesByName.containsKey(currentCourseName)) {
+                ensureAllCoursesLoaded();
+            }
+            this.currentCourseName = currentCourseName;
+            reindex();
+        }
         save();
     }
 
     public void putDetailedCourse(Course course) {
-        for (int i = 0; i < availableCourses.size(); ++i) {
-            if (availableCourses.get(i).getName().equals(course.getName())) {
-                availableCourses.set(i, course);
-                save();
-                break;
+        boolean found = false;
+        synchronized (this) {
+            ensureAllCoursesLoaded();
+            for (int i = 0; i < availableCourses.size(); ++i) {
+                if (availableCourses.get(i).getName().equals(course.getName())) {
+                    availableCourses.set(i, course);
+                    reindex();
+                    found = true;
+                    break;
+                }
             }
         }
+        if (found) {
+            save();
+        }
     }
 
     public Exercise getExerciseByKey(ExerciseKey key) {
-        for (Exercise ex : getCurrentCourseExercises()) {
-            if (key.equals(ex.getKey())) {
-                return ex;
-            }
-        }
-        return null;
+        return index.currentCourseExercisesByKey.get(key);
     }
 
     /**
@@ -120,42 +222,31 @@ public class CourseDb {
     }
     
     public Course getCourseByName(String name) {
-        for (Course course : availableCourses) {
-            if (course.getName().equals(name)) {
-                return course;
-            }
+        Course course = index.coursesByName.get(name);
+        if (course == null && !allCoursesLoaded) {
+            ensureAllCoursesLoaded();
+            course = index.coursesByName.get(name);
         }
-        return null;
+        return course;
     }
     
     public boolean isUnlockable(Exercise ex) {
-        Course course = getCourseByName(ex.getCourseName());
-        return course != null && course.getUnlockables().contains(ex.getName());
+        Set<String> unlockables = index.unlockablesByCourseName.get(ex.getCourseName());
+        if (unlockables == null && !allCoursesLoaded) {
+            ensureAllCoursesLoaded();
+            unlockables = index.unlockablesByCourseName.get(ex.getCourseName());
+        }
+        return unlockables != null && unlockables.contains(ex.getName());
     }
     
     /**
      * Returns all exercises from the current course that can be unlocked (and must be unlocked together).
      */
     public List<Exercise> getCurrentCourseUnlockableExercises() {
-        List<Exercise> result = new ArrayList<Exercise>();
-        Course course = getCurrentCourse();
-        if (course != null) {
-            List<String> unlockables = course.getUnlockables();
-            if (unlockables == null) {
-                unlockables = Collections.emptyList();
-            }
-            for (String exerciseName : unlockables) {
-                for (Exercise ex : course.getExercises()) {
-                    if (ex.getName().equals(exerciseName)) {
-                        result.add(ex);
-                    }
-                }
-            }
-        }
-        return result;
+        return new ArrayList<Exercise>(index.currentCourseUnlockableExercises);
     }
 
-    public String getDownloadedExerciseChecksum(ExerciseKey ex) {
+    public synchronized String getDownloadedExerciseChecksum(ExerciseKey ex) {
         return downloadedExerciseChecksums.get(ex);
     }
     
@@ -166,72 +257,233 @@ public class CourseDb {
      * Sets the downloaded checksum of the exercise to be the one reported by the server.
      */
     public void exerciseDownloaded(Exercise ex) {
-        downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
+        synchronized (this) {
+            downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
+        }
         save();
     }
     
     //TODO: arrange for downloadedExerciseChecksums.put(..., null) when a project is deleted!
     
+    /**
+     * Returns a number that changes every time a {@link ChangedEvent} is posted.
+     * 
+     * <p>
+     * Lets caches of derived data notice changes regardless of the order
+     * in which event listeners are called.
+     */
+    /*package*/ int getChangeCount() {
+        return changeCount.get();
+    }
+    
+    /**
+     * Posts a {@link ChangedEvent} and schedules the database to be written to disk.
+     * 
+     * <p>
+     * Writing happens in the background a moment later so that a burst of
+     * changes (e.g. downloading many exercises) is written only once.
+     */
     public void save() {
-        try {
-            saveToFile();
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Failed to save course database", e);
-        }
+        changeCount.incrementAndGet();
+        saveTask.request();
         eventBus.post(new ChangedEvent());
     }
     
-    private static class StoredStuff {
-        public List<Course> availableCourses;
-        public String currentCourseName;
-        public Map<ExerciseKey, String> downloadedExerciseChecksums;
+    /**
+     * Writes any pending changes to disk and waits for the write to finish.
+     */
+    public void flush() {
+        saveTask.flush();
+    }
+    
+    private void reindex() {
+        this.index = new Index(availableCourses, currentCourseName);
     }
+
+    /**
+     * Lookup tables over the course list so that the frequent queries
+     * (icon annotations, action enabling, event sources) don't need to scan it.
+     * 
+     * <p>
+     * Immutable. A new one is built whenever the course list or the current course changes.
+     */
+    private static class Index {
+        private final Map<String, Course> coursesByName;
+        private final Map<String, Set<String>> unlockablesByCourseName;
+        private final Course currentCourse;
+        private final Map<ExerciseKey, Exercise> currentCourseExercisesByKey;
+        private final List<Exercise> currentCourseUnlockableExercises;
+
+        public Index(List<Course> courses, String currentCourseName) {
+            this.coursesByName = new HashMap<String, Course>();
+            this.unlockablesByCourseName = new HashMap<String, Set<String>>();
+            for (Course course : courses) {
+                // The first one wins, like in the linear search this replaces.
+                if (!coursesByName.containsKey(course.getName())) {
+                    coursesByName.put(course.getName(), course);
+                    unlockablesByCourseName.put(course.getName(), unlockableNames(course));
+                }
+            }
+
+            this.currentCourse = (currentCourseName != null) ? coursesByName.get(currentCourseName) : null;
+            this.currentCourseExercisesByKey = new HashMap<ExerciseKey, Exercise>();
+            this.currentCourseUnlockableExercises = new ArrayList<Exercise>();
+            if (currentCourse != null) {
+                Map<String, Exercise> exercisesByName = new HashMap<String, Exercise>();
+                for (Exercise ex : currentCourse.getExercises()) {
+                    if (!currentCourseExercisesByKey.containsKey(ex.getKey())) {
+                        currentCourseExercisesByKey.put(ex.getKey(), ex);
+                    }
+                    if (!exercisesByName.containsKey(ex.getName())) {
+                        exercisesByName.put(ex.getName(), ex);
+                    }
+                }
+                List<String> unlockables = currentCourse.getUnlockables();
+                if (unlockables != null) {
+                    for (String exerciseName : unlockables) {
+                        Exercise ex = exercisesByName.get(exerciseName);
+                        if (ex != null) {
+                            currentCourseUnlockableExercises.add(ex);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static Set<String> unlockableNames(Course course) {
+            List<String> unlockables = course.getUnlockables();
+            if (unlockables == null) {
+                return Collections.emptySet();
+            }
+            return new HashSet<String>(unlockables);
+        }
+    }
+    
+    // The file is written with the small fields and the current course first
+    // so that startup can stop reading before the rest of the course list.
+    // The field names are compatible with the older format where everything
+    // was read at once. Files in that format are still read in full.
     
     private void saveToFile() throws IOException {
-        StoredStuff stuff = new StoredStuff();
-        stuff.availableCourses = this.availableCourses;
-        stuff.currentCourseName = this.currentCourseName;
-        stuff.downloadedExerciseChecksums = this.downloadedExerciseChecksums;
-        Writer w = configFile.getWriter();
-        try {
-            getGson().toJson(stuff, w);
-        } finally {
-            w.close();
+        StringWriter json = new StringWriter();
+        synchronized (this) {
+            if (!ensureAllCoursesLoaded()) {
+                throw new IOException("Not saving before the stored course list has been read");
+            }
+            JsonWriter writer = new JsonWriter(json);
+            writer.beginObject();
+            writer.name("currentCourseName");
+            GSON.toJson(currentCourseName, String.class, writer);
+            writer.name("downloadedExerciseChecksums");
+            GSON.toJson(downloadedExerciseChecksums, CHECKSUMS_TYPE, writer);
+            writer.name("currentCourse");
+            GSON.toJson(getCurrentCourse(), Course.class, writer);
+            writer.name("availableCourses");
+            GSON.toJson(availableCourses, COURSE_LIST_TYPE, writer);
+            writer.endObject();
+            writer.close();
         }
+        TmcFileUtils.writeAtomically(file, json.toString().getBytes(UTF8));
     }
 
     private void loadFromFile() throws IOException {
-        if (!configFile.exists()) {
+        if (!Files.exists(file)) {
+            allCoursesLoaded = true;
             return;
         }
         
-        Reader reader = configFile.getReader();
-        StoredStuff stuff;
+        JsonReader reader = new JsonReader(Files.newBufferedReader(file, UTF8));
         try {
-            stuff = getGson().fromJson(reader, StoredStuff.class);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                allCoursesLoaded = true;
+                return;
+            }
+            boolean currentCourseStoredSeparately = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("currentCourseName")) {
+                    this.currentCourseName = GSON.fromJson(reader, String.class);
+                } else if (name.equals("downloadedExerciseChecksums")) {
+                    Map<ExerciseKey, String> checksums = GSON.fromJson(reader, CHECKSUMS_TYPE);
+                    if (checksums != null) {
+                        this.downloadedExerciseChecksums.putAll(checksums);
+                    }
+                } else if (name.equals("currentCourse")) {
+                    currentCourseStoredSeparately = true;
+                    Course currentCourse = GSON.fromJson(reader, Course.class);
+                    if (currentCourse != null) {
+                        this.availableCourses.add(currentCourse);
+                    }
+                } else if (name.equals("availableCourses")) {
+                    if (currentCourseStoredSeparately) {
+                        // The rest is read on demand by ensureAllCoursesLoaded.
+                        return;
+                    }
+                    // Older format: the current course isn't stored separately.
+                    List<Course> courses = GSON.fromJson(reader, COURSE_LIST_TYPE);
+                    if (courses != null) {
+                        this.availableCourses.addAll(courses);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            this.allCoursesLoaded = true;
         } finally {
             reader.close();
         }
-        if (stuff != null) {
-            if (stuff.availableCourses != null) {
-                this.availableCourses.clear();
-                this.availableCourses.addAll(stuff.availableCourses);
-            }
-            
-            this.currentCourseName = stuff.currentCourseName;
-            
-            if (stuff.downloadedExerciseChecksums != null) {
-                this.downloadedExerciseChecksums.clear();
-                this.downloadedExerciseChecksums.putAll(stuff.downloadedExerciseChecksums);
+    }
+    
+    /**
+     * Reads the part of the course list that was not read at startup.
+     *
+     * @return whether the whole course list is now loaded.
+     */
+    private synchronized boolean ensureAllCoursesLoaded() {
+        if (allCoursesLoaded) {
+            return true;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        try {
+            List<Course> storedCourses = readStoredCourseList();
+            List<Course> courses = new ArrayList<Course>();
+            for (Course course : storedCourses) {
+                // Keep the instances read at startup since they may have been modified since.
+                Course alreadyLoaded = index.coursesByName.get(course.getName());
+                courses.add(alreadyLoaded != null ? alreadyLoaded : course);
             }
+            this.availableCourses = courses;
+        } catch (Exception e) {
+            // Tried again next time. Until then saving would lose the unread courses.
+            logger.log(Level.WARNING, "Failed to load the course list", e);
+            return false;
         }
+        this.allCoursesLoaded = true;
+        reindex();
+        logger.log(Level.INFO, "Loaded the rest of the course list in {0} ms", System.currentTimeMillis() - startTime);
+        return true;
     }
     
-    private Gson getGson() {
-        return new GsonBuilder()
-                .serializeNulls()
-                .setPrettyPrinting()
-                .registerTypeAdapter(ExerciseKey.class, new ExerciseKey.GsonAdapter())
-                .create();
+    private List<Course> readStoredCourseList() throws IOException {
+        JsonReader reader = new JsonReader(Files.newBufferedReader(file, UTF8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("availableCourses")) {
+                    List<Course> courses = GSON.fromJson(reader, COURSE_LIST_TYPE);
+                    if (courses != null) {
+                        return courses;
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return Collections.emptyList();
+        } finally {
+            reader.close();
+        }
     }
 }
@@ -0,0 +1,176 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.domain.ProgressObserver;
+import fi.helsinki.cs.tmc.utilities.BgTask;
+import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Runs exercise downloads in their own threads, most important first.
+ *
+ * <p>
+ * At most {@link #MAX_CONCURRENT_DOWNLOADS} downloads run at once, so that a
+ * large download doesn't hold up test runs and submissions in
+ * {@link fi.helsinki.cs.tmc.utilities.TmcRequestProcessor}. Uncompleted
+ * exercises go before completed ones, and exercises whose deadline hasn't
+ * passed before expired ones. Otherwise downloads run in the order they were
+ * submitted.
+ *
+ * <p>
+ * Each download shows its own progress as a {@link BgTask}. An extra progress
+ * indicator tells how many of the submitted downloads are done and how fast
+ * they are going.
+ */
+public class DownloadScheduler {
+    private static final Logger log = Logger.getLogger(DownloadScheduler.class.getName());
+
+    /*package*/ static final int MAX_CONCURRENT_DOWNLOADS = 3;
+
+    private static DownloadScheduler instance;
+
+    public static synchronized DownloadScheduler getInstance() {
+        if (instance == null) {
+            instance = new DownloadScheduler();
+        }
+        return instance;
+    }
+
+    private static class Job {
+        private final BgTask<?> task;
+        private final Runnable whenFinished;
+        private final boolean completed;
+        private final boolean expired;
+        private final long sequence;
+
+        public Job(BgTask<?> task, Runnable whenFinished, Exercise exercise, long sequence) {
+            this.task = task;
+            this.whenFinished = whenFinished;
+            this.completed = exercise.isCompleted();
+            this.expired = exercise.hasDeadlinePassed();
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Job> PRIORITY = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            if (a.completed != b.completed) {
+                return a.completed ? 1 : -1;
+            }
+            if (a.expired != b.expired) {
+                return a.expired ? 1 : -1;
+            }
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final RequestProcessor processor;
+    private final PriorityQueue<Job> queue; // guarded by this
+    private long nextSequence; // guarded by this
+
+    // Progress of the downloads submitted since the scheduler was last idle. Guarded by this.
+    private ProgressHandle roundProgress;
+    private int roundTotal;
+    private int roundDone;
+    private long roundStartTime;
+
+    private DownloadScheduler() {
+        this.processor = new RequestProcessor("TMC downloads", MAX_CONCURRENT_DOWNLOADS, true);
+        this.queue = new PriorityQueue<Job>(16, PRIORITY);
+    }
+
+    /**
+     * Schedules a download of the given exercise. The listener is called
+     * like with {@link BgTask#start}.
+     */
+    public <V> void submit(String label, Exercise exercise, Callable<V> callable, ProgressObserver observer, BgTaskListener<? super V> listener) {
+        submit(label, exercise, callable, observer, listener, null);
+    }
+
+    /**
+     * Schedules a download of the given exercise and calls
+     * <code>whenFinished</code> after it, however it ended.
+     *
+     * <p>
+     * {@link BgTask} handles some errors by itself without calling the
+     * listener, so this is the only reliable way to know that a download
+     * is over.
+     */
+    public <V> void submit(String label, Exercise exercise, Callable<V> callable, ProgressObserver observer, BgTaskListener<? super V> listener, Runnable whenFinished) {
+        BgTask<V> task = new BgTask<V>(label, callable, observer, listener);
+        synchronized (this) {
+            queue.add(new Job(task, whenFinished, exercise, nextSequence++));
+            if (roundTotal == 0) {
+                roundProgress = ProgressHandleFactory.createHandle("Downloading exercises");
+                roundProgress.start();
+                roundStartTime = System.currentTimeMillis();
+            }
+            roundTotal++;
+            reportRoundProgress();
+        }
+
+        // Each run takes whichever job is most important at the time.
+        processor.post(new Runnable() {
+            @Override
+            public void run() {
+                runNextJob();
+            }
+        });
+    }
+
+    private void runNextJob() {
+        Job job;
+        synchronized (this) {
+            job = queue.poll();
+        }
+        if (job == null) {
+            return;
+        }
+        try {
+            job.task.call();
+        } finally {
+            try {
+                if (job.whenFinished != null) {
+                    job.whenFinished.run();
+                }
+            } finally {
+                jobFinished();
+            }
+        }
+    }
+
+    private synchronized void jobFinished() {
+        roundDone++;
+        if (roundDone < roundTotal) {
+            reportRoundProgress();
+            return;
+        }
+
+        long seconds = Math.max(1, (System.currentTimeMillis() - roundStartTime) / 1000);
+        log.log(Level.INFO, "Downloaded {0} exercises in {1} s ({2} per minute)",
+                new Object[] {roundTotal, seconds, roundTotal * 60 / seconds});
+        roundProgress.finish();
+        roundProgress = null;
+        roundTotal = 0;
+        roundDone = 0;
+    }
+
+    // Called with this locked
+    private void reportRoundProgress() {
+        String details = roundDone + " of " + roundTotal + " done";
+        long seconds = (System.currentTimeMillis() - roundStartTime) / 1000;
+        if (roundDone > 0 && seconds > 0) {
+            details += ", " + (roundDone * 60 / seconds) + " per minute";
+        }
+        roundProgress.progress(details);
+    }
+}
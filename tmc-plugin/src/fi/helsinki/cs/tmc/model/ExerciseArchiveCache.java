@@ -0,0 +1,312 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps the pristine contents of downloaded exercises on disk, keyed by the
+ * exercise checksum, so that downloading the same version again doesn't need
+ * the network.
+ *
+ * <p>
+ * The core library downloads and extracts in one step and doesn't hand out the
+ * archive, so the cache stores a zip of the project right after it has been
+ * extracted. The least recently used archives are deleted when the cache grows
+ * over its maximum size.
+ *
+ * <p>
+ * After an update the project already has the student's files, so only its
+ * other files can be stored. Such an archive is incomplete: it can't be
+ * restored, but it tells {@link TemplateDeltaUpdater} what was installed.
+ */
+public class ExerciseArchiveCache {
+    private static final Logger log = Logger.getLogger(ExerciseArchiveCache.class.getName());
+
+    private static final String CACHE_DIR = "exercise-cache";
+    private static final String TEMPLATE_FILES_SUFFIX = ".template.zip";
+    /*package*/ static final long DEFAULT_MAX_SIZE = 256 * 1024 * 1024;
+
+    // Checksums become file names, so anything unusual is not cached.
+    private static final Pattern CHECKSUM_PATTERN = Pattern.compile("[0-9a-zA-Z]{1,128}");
+
+    private static ExerciseArchiveCache instance;
+
+    public static synchronized ExerciseArchiveCache getInstance() {
+        if (instance == null) {
+            instance = new ExerciseArchiveCache(TmcSettingsHolder.get().getConfigRoot().resolve(CACHE_DIR), DEFAULT_MAX_SIZE);
+        }
+        return instance;
+    }
+
+    private final Path dir;
+    private final long maxSize;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    public ExerciseArchiveCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Extracts the cached version of the exercise into the given project
+     * directory, if there is one.
+     *
+     * @return whether the exercise was found in the cache.
+     */
+    public boolean tryRestore(Exercise exercise, Path projectDir) {
+        Path archive = archiveFor(exercise);
+        if (archive == null || !Files.isRegularFile(archive)) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        try {
+            extract(archive, projectDir);
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to restore " + exercise.getName() + " from the exercise cache", e);
+            // Don't leave a half extracted project for the real download to update.
+            FileUtils.deleteQuietly(projectDir.toFile());
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        log.log(Level.INFO, "Restored {0} from the exercise cache ({1} hits, {2} misses)",
+                new Object[] {exercise.getName(), hits.get(), misses.get()});
+        return true;
+    }
+
+    /**
+     * Stores the contents of a freshly downloaded exercise's project directory.
+     * Must not be called after the student may have changed the project.
+     */
+    public void store(Exercise exercise, Path projectDir) {
+        Path archive = archiveFor(exercise);
+        if (archive == null || Files.exists(archive)) {
+            return;
+        }
+
+        writeArchive(exercise, projectDir, RecursiveZipper.ZIP_ALL_THE_THINGS, archive);
+    }
+
+    private void writeArchive(Exercise exercise, Path projectDir, RecursiveZipper.ZippingDecider decider, Path archive) {
+        Path tempFile = null;
+        try {
+            Files.createDirectories(dir);
+            tempFile = Files.createTempFile(dir, "store", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                new RecursiveZipper(projectDir.toFile(), decider).zipProjectSources(out);
+            }
+            try {
+                Files.move(tempFile, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, archive, StandardCopyOption.REPLACE_EXISTING);
+            }
+            evict();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to store " + exercise.getName() + " in the exercise cache", e);
+            if (tempFile != null) {
+                FileUtils.deleteQuietly(tempFile.toFile());
+            }
+        }
+    }
+
+    /**
+     * Stores the files of an updated project's directory that come from the
+     * template as they are, i.e. all but the student files. Must be called
+     * right after the update.
+     */
+    public void storeTemplateFiles(Exercise exercise, Path projectDir, final TemplateDeltaUpdater.StudentFilePolicy policy) {
+        Path archive = templateFilesFor(exercise.getChecksum());
+        if (archive == null || Files.exists(archive) || Files.exists(archiveFor(exercise))) {
+            return;
+        }
+
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(String zipPath) {
+                return zipPath.endsWith("/") || !policy.isStudentFile(withoutRootDir(zipPath));
+            }
+        };
+        writeArchive(exercise, projectDir, decider, archive);
+    }
+
+    /**
+     * Returns the cached archive of the exercise version with the given
+     * checksum, or null if it isn't cached.
+     *
+     * <p>
+     * The archive's entries are in a directory named after the project.
+     */
+    public Path tryGetArchive(String checksum) {
+        Path archive = archiveFor(checksum);
+        if (archive == null || !Files.isRegularFile(archive)) {
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            return null;
+        }
+        return archive;
+    }
+
+    /**
+     * Returns the cached archive of the exercise version with the given
+     * checksum, or else the archive of its template files, or null if
+     * neither is cached.
+     *
+     * @see #isComplete(Path)
+     */
+    public Path tryGetTemplateFiles(String checksum) {
+        Path archive = tryGetArchive(checksum);
+        if (archive != null) {
+            return archive;
+        }
+        archive = templateFilesFor(checksum);
+        if (archive == null || !Files.isRegularFile(archive)) {
+            return null;
+        }
+        return archive;
+    }
+
+    /**
+     * Tells whether the archive has all the files of the exercise version and
+     * not just those stored by {@link #storeTemplateFiles}.
+     */
+    public static boolean isComplete(Path archive) {
+        return !archive.getFileName().toString().endsWith(TEMPLATE_FILES_SUFFIX);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private Path archiveFor(Exercise exercise) {
+        return archiveFor(exercise.getChecksum());
+    }
+
+    private Path archiveFor(String checksum) {
+        if (checksum == null || !CHECKSUM_PATTERN.matcher(checksum).matches()) {
+            return null;
+        }
+        return dir.resolve(checksum + ".zip");
+    }
+
+    private Path templateFilesFor(String checksum) {
+        if (checksum == null || !CHECKSUM_PATTERN.matcher(checksum).matches()) {
+            return null;
+        }
+        return dir.resolve(checksum + TEMPLATE_FILES_SUFFIX);
+    }
+
+    // Deletes the least recently used archives until the cache fits in maxSize.
+    private synchronized void evict() throws IOException {
+        List<Path> archives = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.zip")) {
+            for (Path path : stream) {
+                archives.add(path);
+            }
+        }
+
+        long totalSize = 0;
+        for (Path archive : archives) {
+            totalSize += Files.size(archive);
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        Collections.sort(archives, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return lastModified(a).compareTo(lastModified(b));
+            }
+        });
+        for (Path archive : archives) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            long size = Files.size(archive);
+            Files.deleteIfExists(archive);
+            totalSize -= size;
+            log.log(Level.FINE, "Evicted {0} from the exercise cache", archive.getFileName());
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // The archive's entries start with the name the project directory had when
+    // it was stored. That part is replaced by projectDir.
+    private static void extract(Path archive, Path projectDir) throws IOException {
+        Path target = projectDir.toAbsolutePath().normalize();
+        try (InputStream in = Files.newInputStream(archive); ZipInputStream zis = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                Path path = target.resolve(toProjectPath(entry).replace('/', File.separatorChar)).normalize();
+                if (!path.startsWith(target)) {
+                    throw new IOException("Bad entry in cached exercise: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                } else {
+                    Files.createDirectories(path.getParent());
+                    Files.copy(zis, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static String withoutRootDir(String zipPath) {
+        int slash = zipPath.indexOf('/');
+        return slash < 0 ? "" : zipPath.substring(slash + 1);
+    }
+
+    /**
+     * Returns the path of a cached archive's entry relative to the project
+     * directory, without a trailing slash.
+     */
+    /*package*/ static String toProjectPath(ZipEntry entry) {
+        String name = entry.getName();
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return withoutRootDir(name);
+    }
+}
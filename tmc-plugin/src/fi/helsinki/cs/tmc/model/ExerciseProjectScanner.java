@@ -0,0 +1,159 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Finds out which exercises have a project and which of those are open.
+ *
+ * <p>
+ * Instead of looking up a project for every exercise, each course directory
+ * is listed once and the exercise directories are matched against the open
+ * projects' directories. Only directories that exist but aren't open are
+ * probed, and those in parallel on a small processor of their own if there
+ * are several processors. Probing takes NetBeans' project locks, so it must
+ * not hold up threads shared with others.
+ */
+class ExerciseProjectScanner {
+    private static final Logger log = Logger.getLogger(ExerciseProjectScanner.class.getName());
+
+    private static final int MAX_PROBE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final RequestProcessor probeProcessor =
+            new RequestProcessor("Exercise project probe", MAX_PROBE_THREADS, false);
+
+    public enum State {
+        MISSING, CLOSED, OPEN
+    }
+
+    public interface ProjectProbe {
+        /**
+         * Tells whether the directory is a project. Called from several threads.
+         */
+        boolean isProject(Path dir);
+    }
+
+    private final Path projectRoot;
+    private final Set<Path> openProjectDirs;
+    private final ProjectProbe probe;
+
+    /**
+     * @param openProjectDirs the real paths of the open projects' directories.
+     */
+    public ExerciseProjectScanner(Path projectRoot, Set<Path> openProjectDirs, ProjectProbe probe) {
+        this.projectRoot = projectRoot;
+        this.openProjectDirs = openProjectDirs;
+        this.probe = probe;
+    }
+
+    public Map<Exercise, State> scan(Collection<Exercise> exercises) {
+        Map<Exercise, State> result = new HashMap<Exercise, State>();
+        Map<String, Path> courseDirs = new HashMap<String, Path>();
+        Map<String, Set<String>> courseListings = new HashMap<String, Set<String>>();
+        final Map<Exercise, Path> ambiguous = new HashMap<Exercise, Path>();
+
+        for (Exercise ex : exercises) {
+            String courseName = ex.getCourseName();
+            if (!courseDirs.containsKey(courseName)) {
+                Path courseDir = tryGetRealPath(projectRoot.resolve(courseName));
+                courseDirs.put(courseName, courseDir);
+                courseListings.put(courseName, tryListDirectory(courseDir));
+            }
+
+            String dirName = ex.getName().replaceAll("/", "-");
+            Set<String> listing = courseListings.get(courseName);
+            Path dir = courseDirs.get(courseName).resolve(dirName);
+            if (listing != null && !listing.contains(dirName)) {
+                result.put(ex, State.MISSING);
+            } else if (openProjectDirs.contains(dir)) {
+                result.put(ex, State.OPEN);
+            } else {
+                ambiguous.put(ex, dir);
+            }
+        }
+
+        List<Exercise> probed = new ArrayList<Exercise>(ambiguous.keySet());
+        if (probed.size() < 2 || MAX_PROBE_THREADS < 2) {
+            // Handing the probes to another thread would only add latency.
+            for (Exercise ex : probed) {
+                result.put(ex, probe(ambiguous.get(ex)));
+            }
+            return result;
+        }
+
+        List<Future<State>> states = new ArrayList<Future<State>>();
+        for (final Exercise ex : probed) {
+            states.add(probeProcessor.submit(new Callable<State>() {
+                @Override
+                public State call() {
+                    return probe(ambiguous.get(ex));
+                }
+            }));
+        }
+        for (int i = 0; i < probed.size(); ++i) {
+            result.put(probed.get(i), getState(states.get(i)));
+        }
+        return result;
+    }
+
+    private State probe(Path dir) {
+        // The directory itself may be a link to an open project.
+        if (openProjectDirs.contains(tryGetRealPath(dir))) {
+            return State.OPEN;
+        }
+        return probe.isProject(dir) ? State.CLOSED : State.MISSING;
+    }
+
+    private static State getState(Future<State> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return State.MISSING;
+        } catch (ExecutionException ex) {
+            log.log(Level.WARNING, "Failed to find out the state of a project", ex.getCause());
+            return State.MISSING;
+        }
+    }
+
+    // Returns the names in the directory, or null if they couldn't be read.
+    private static Set<String> tryListDirectory(Path dir) {
+        Set<String> names = new HashSet<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        } catch (NoSuchFileException ex) {
+            // Nothing downloaded for this course yet.
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Failed to list " + dir + ", probing every exercise", ex);
+            return null;
+        }
+        return names;
+    }
+
+    private static Path tryGetRealPath(Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException ex) {
+            return path;
+        }
+    }
+}
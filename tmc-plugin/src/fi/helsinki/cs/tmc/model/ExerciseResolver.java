@@ -0,0 +1,144 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.core.events.TmcEventListener;
+import fi.helsinki.cs.tmc.coreimpl.TmcCoreSettingsImpl;
+
+import com.google.common.base.Optional;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.netbeans.api.project.ui.OpenProjects;
+import org.openide.filesystems.FileObject;
+
+/**
+ * Finds the project and exercise that a file belongs to, remembering the
+ * answers for recently seen folders.
+ *
+ * <p>
+ * Finding the owning project walks up the folder tree asking NetBeans about
+ * each folder, which is too slow to do for every event. The answers are
+ * forgotten when projects are opened or closed, or when the course database
+ * or the settings change. Thread-safe.
+ */
+public class ExerciseResolver {
+    private static final int MAX_FOLDERS = 256;
+
+    private static ExerciseResolver instance;
+
+    public static synchronized ExerciseResolver getInstance() {
+        if (instance == null) {
+            instance = new ExerciseResolver(ProjectMediator.getInstance(), CourseDb.getInstance());
+        }
+        return instance;
+    }
+
+    private static class Resolution {
+        private final TmcProjectInfo project;
+        private final Exercise exercise;
+
+        public Resolution(TmcProjectInfo project, Exercise exercise) {
+            this.project = project;
+            this.exercise = exercise;
+        }
+    }
+
+    private final ProjectMediator projectMediator;
+    private final CourseDb courseDb;
+    private final Map<FileObject, Optional<Resolution>> folders; // guarded by this
+    private int generation; // guarded by this
+
+    private ExerciseResolver(ProjectMediator projectMediator, CourseDb courseDb) {
+        this.projectMediator = projectMediator;
+        this.courseDb = courseDb;
+        this.folders = new LinkedHashMap<FileObject, Optional<Resolution>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FileObject, Optional<Resolution>> eldest) {
+                return size() > MAX_FOLDERS;
+            }
+        };
+
+        OpenProjects.getDefault().addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (OpenProjects.PROPERTY_OPEN_PROJECTS.equals(evt.getPropertyName())) {
+                    invalidate();
+                }
+            }
+        });
+        TmcEventBus.getDefault().subscribeStrongly(new TmcEventListener() {
+            public void receive(TmcCoreSettingsImpl.SavedEvent e) {
+                invalidate();
+            }
+
+            public void receive(CourseDb.ChangedEvent e) {
+                invalidate();
+            }
+        });
+    }
+
+    /**
+     * Returns the project owning the given file, or null if none.
+     */
+    public TmcProjectInfo tryGetProjectOwningFile(FileObject fo) {
+        Resolution resolution = resolve(fo);
+        return resolution != null ? resolution.project : null;
+    }
+
+    /**
+     * Returns the exercise whose project owns the given file, or null if none.
+     */
+    public Exercise tryGetExerciseForFile(FileObject fo) {
+        Resolution resolution = resolve(fo);
+        return resolution != null ? resolution.exercise : null;
+    }
+
+    /**
+     * Returns the exercise associated with the given project, or null if none.
+     */
+    public Exercise tryGetExerciseForProject(TmcProjectInfo project) {
+        return projectMediator.tryGetExerciseForProject(project, courseDb);
+    }
+
+    public synchronized void invalidate() {
+        folders.clear();
+        generation++;
+    }
+
+    private Resolution resolve(FileObject fo) {
+        if (fo == null) {
+            return null;
+        }
+        FileObject folder = fo.isFolder() ? fo : fo.getParent();
+        if (folder == null) {
+            return null;
+        }
+
+        int startGeneration;
+        synchronized (this) {
+            Optional<Resolution> cached = folders.get(folder);
+            if (cached != null) {
+                return cached.orNull();
+            }
+            startGeneration = generation;
+        }
+
+        // Resolved outside the lock, as it may take a while.
+        Resolution resolution = null;
+        TmcProjectInfo project = projectMediator.tryGetProjectOwningFile(folder);
+        if (project != null) {
+            resolution = new Resolution(project, projectMediator.tryGetExerciseForProject(project, courseDb));
+        }
+
+        synchronized (this) {
+            // Don't remember answers that may have gone stale while resolving.
+            if (generation == startGeneration) {
+                folders.put(folder, Optional.fromNullable(resolution));
+            }
+        }
+        return resolution;
+    }
+}
@@ -5,6 +5,7 @@ import fi.helsinki.cs.tmc.core.domain.Exercise;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.lang3.ObjectUtils;
 
 /**
@@ -31,28 +32,36 @@ public class LocalExerciseStatus {
         updateable = new ArrayList<>();
         unlockable = new ArrayList<>();
 
+        List<Exercise> current = new ArrayList<>();
         for (Exercise ex : allExercises) {
             if (!ex.hasDeadlinePassed()) {
-                TmcProjectInfo proj = projectMediator.tryGetProjectForExercise(ex);
-                boolean isDownloaded = proj != null;
-                if (courseDb.isUnlockable(ex)) {
-                    unlockable.add(ex);
-                } else if (!isDownloaded && !ex.isLocked()) {
-                    if (ex.isCompleted()) {
-                        downloadableCompleted.add(ex);
-                    } else {
-                        downloadableUncompleted.add(ex);
-                    }
-                } else if (isDownloaded && projectMediator.isProjectOpen(proj)) {
-                    open.add(ex);
+                current.add(ex);
+            }
+        }
+
+        // Computed for all exercises at once, since looking up projects one by one is slow.
+        Map<Exercise, ExerciseProjectScanner.State> projectStates = projectMediator.getProjectStates(current);
+
+        for (Exercise ex : current) {
+            ExerciseProjectScanner.State projectState = projectStates.get(ex);
+            boolean isDownloaded = projectState != ExerciseProjectScanner.State.MISSING;
+            if (courseDb.isUnlockable(ex)) {
+                unlockable.add(ex);
+            } else if (!isDownloaded && !ex.isLocked()) {
+                if (ex.isCompleted()) {
+                    downloadableCompleted.add(ex);
                 } else {
-                    closed.add(ex); // TODO: all projects may end up here if this is queried too early
+                    downloadableUncompleted.add(ex);
                 }
+            } else if (projectState == ExerciseProjectScanner.State.OPEN) {
+                open.add(ex);
+            } else {
+                closed.add(ex); // TODO: all projects may end up here if this is queried too early
+            }
 
-                String downloadedChecksum = courseDb.getDownloadedExerciseChecksum(ex.getKey());
-                if (isDownloaded && ObjectUtils.notEqual(downloadedChecksum, ex.getChecksum())) {
-                    updateable.add(ex);
-                }
+            String downloadedChecksum = courseDb.getDownloadedExerciseChecksum(ex.getKey());
+            if (isDownloaded && ObjectUtils.notEqual(downloadedChecksum, ex.getChecksum())) {
+                updateable.add(ex);
             }
         }
     }
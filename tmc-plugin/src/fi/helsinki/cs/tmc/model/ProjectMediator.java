@@ -1,10 +1,14 @@
 package fi.helsinki.cs.tmc.model;
 
 import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.core.events.TmcEventListener;
 import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
 import fi.helsinki.cs.tmc.coreimpl.TmcCoreSettingsImpl;
 import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
 
+import com.google.common.base.Optional;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -12,8 +16,12 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
@@ -46,10 +54,22 @@ public class ProjectMediator {
     
     private OpenProjects openProjects;
     private ProjectManager projectManager;
+    private volatile ExerciseLookup exerciseLookup;
     
     public ProjectMediator() {
         this.openProjects = OpenProjects.getDefault();
         this.projectManager = ProjectManager.getDefault();
+        
+        TmcEventBus.getDefault().subscribeStrongly(new TmcEventListener() {
+            public void receive(TmcCoreSettingsImpl.SavedEvent e) {
+                // The project root dir may have changed.
+                exerciseLookup = null;
+            }
+            
+            public void receive(CourseDb.ChangedEvent e) {
+                exerciseLookup = null;
+            }
+        });
     }
     
     public TmcProjectInfo wrapProject(Project p) {
@@ -128,13 +148,58 @@ public class ProjectMediator {
      * Returns the exercise associated with the given project, or null if none.
      */
     public Exercise tryGetExerciseForProject(TmcProjectInfo project, CourseDb courseDb) {
-        Path projectDir = FileUtil.toFile(project.getProjectDir()).toPath();
-        for (Exercise ex : courseDb.getCurrentCourseExercises()) {
-            if (getProjectDirForExercise(ex).equals(tryGetRealPath(projectDir))) {
-                return ex;
+        File projectDirFile = FileUtil.toFile(project.getProjectDir());
+        if (projectDirFile == null) {
+            return null;
+        }
+        
+        ExerciseLookup lookup = exerciseLookup;
+        if (lookup == null || !lookup.isValidFor(courseDb)) {
+            lookup = new ExerciseLookup(courseDb);
+            exerciseLookup = lookup;
+        }
+        return lookup.get(projectDirFile.toPath());
+    }
+    
+    /**
+     * Maps project directories to the exercises of the current course.
+     * 
+     * <p>
+     * Resolving real paths is a chain of syscalls, so it's done once per exercise
+     * when the lookup is built and once per distinct project directory after that.
+     * Discarded when the course database or the settings change.
+     */
+    private class ExerciseLookup {
+        private final CourseDb courseDb;
+        private final int courseDbChangeCount;
+        private final Map<Path, Exercise> exercisesByRealDir;
+        private final Map<Path, Optional<Exercise>> resolvedProjectDirs;
+        
+        public ExerciseLookup(CourseDb courseDb) {
+            this.courseDb = courseDb;
+            this.courseDbChangeCount = courseDb.getChangeCount();
+            this.exercisesByRealDir = new HashMap<Path, Exercise>();
+            for (Exercise ex : courseDb.getCurrentCourseExercises()) {
+                Path dir = getProjectDirForExercise(ex);
+                if (!exercisesByRealDir.containsKey(dir)) {
+                    exercisesByRealDir.put(dir, ex);
+                }
             }
+            this.resolvedProjectDirs = new ConcurrentHashMap<Path, Optional<Exercise>>();
+        }
+        
+        public boolean isValidFor(CourseDb courseDb) {
+            return this.courseDb == courseDb && this.courseDbChangeCount == courseDb.getChangeCount();
+        }
+        
+        public Exercise get(Path projectDir) {
+            Optional<Exercise> result = resolvedProjectDirs.get(projectDir);
+            if (result == null) {
+                result = Optional.fromNullable(exercisesByRealDir.get(tryGetRealPath(projectDir)));
+                resolvedProjectDirs.put(projectDir, result);
+            }
+            return result.orNull();
         }
-        return null;
     }
     
     /**
@@ -165,7 +230,67 @@ public class ProjectMediator {
      */
     public TmcProjectInfo tryGetProjectForExercise(Exercise exercise) {
         projectManager.clearNonProjectCache(); // Just to be sure.
+        return findProjectForExercise(exercise);
+    }
+    
+    /**
+     * Returns the projects of the given exercises, leaving out the ones not yet created.
+     * 
+     * <p>
+     * Like {@link #tryGetProjectForExercise} for each exercise, but NetBeans'
+     * cache of directories that aren't projects is cleared only once.
+     */
+    public List<TmcProjectInfo> tryGetProjectsForExercises(Collection<Exercise> exercises) {
+        projectManager.clearNonProjectCache();
+        
+        List<TmcProjectInfo> result = new ArrayList<TmcProjectInfo>();
+        for (Exercise exercise : exercises) {
+            TmcProjectInfo project = findProjectForExercise(exercise);
+            if (project != null) {
+                result.add(project);
+            } else {
+                logger.log(Level.WARNING, "No project found for exercise {0}", exercise.getName());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Tells for each exercise whether its project exists and whether it is open.
+     * 
+     * <p>
+     * Much faster than calling {@link #tryGetProjectForExercise} and
+     * {@link #isProjectOpen} for each exercise of a large course.
+     */
+    /*package*/ Map<Exercise, ExerciseProjectScanner.State> getProjectStates(Collection<Exercise> exercises) {
+        Set<Path> openProjectDirs = new HashSet<Path>();
+        for (Project project : openProjects.getOpenProjects()) {
+            File dir = FileUtil.toFile(project.getProjectDirectory());
+            if (dir != null) {
+                openProjectDirs.add(tryGetRealPath(dir.toPath()));
+            }
+        }
         
+        projectManager.clearNonProjectCache(); // Just to be sure.
+        ExerciseProjectScanner scanner = new ExerciseProjectScanner(Paths.get(getProjectRootDir()), openProjectDirs, new ExerciseProjectScanner.ProjectProbe() {
+            @Override
+            public boolean isProject(Path dir) {
+                FileObject fo = FileUtil.toFileObject(FileUtil.normalizeFile(dir.toFile()));
+                if (fo == null) {
+                    return false;
+                }
+                try {
+                    return projectManager.findProject(fo) != null;
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Finding project in " + dir + " failed", ex);
+                    return false;
+                }
+            }
+        });
+        return scanner.scan(exercises);
+    }
+    
+    private TmcProjectInfo findProjectForExercise(Exercise exercise) {
         File path = getProjectDirForExercise(exercise).toFile();
         FileObject fo = FileUtil.toFileObject(path);
         if (fo != null) {
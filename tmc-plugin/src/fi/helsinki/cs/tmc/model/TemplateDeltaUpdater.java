@@ -0,0 +1,231 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.utilities.zip.PathGlobSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Updates an exercise project from one template version to another by writing
+ * only the files that changed between the versions.
+ *
+ * <p>
+ * Both versions are given as archives from the {@link ExerciseArchiveCache}.
+ * The old one serves as the manifest of what was installed. Student files, as
+ * told by {@link StudentFilePolicy}, are never overwritten if they exist, like
+ * in a full update. Other files are written if they changed in the template or
+ * on disk. A file that was removed from the template is deleted only if it is
+ * still as installed and the old archive is complete.
+ *
+ * <p>
+ * If the new template changes which files are the student's, the update fails
+ * with an {@link IOException} before touching the project, and a full update
+ * should be done instead.
+ */
+public class TemplateDeltaUpdater {
+
+    // Files that decide which files are the student's.
+    private static final String PROJECT_FILE = ".tmcproject.yml";
+    private static final String[] PROJECT_TYPE_FILES = {"pom.xml", "Makefile"};
+
+    /**
+     * Tells which files of a project are the student's, the same way as the
+     * project's type and its {@code .tmcproject.yml} tell the full update.
+     */
+    public static class StudentFilePolicy {
+        private final String sourceDir;
+        private final PathGlobSet extraStudentFiles;
+
+        private StudentFilePolicy(String sourceDir, PathGlobSet extraStudentFiles) {
+            this.sourceDir = sourceDir;
+            this.extraStudentFiles = extraStudentFiles;
+        }
+
+        /**
+         * Reads the policy of the project in the given directory.
+         *
+         * @throws IOException if the project's {@code .tmcproject.yml} can't be read.
+         */
+        public static StudentFilePolicy forProject(Path projectDir) throws IOException {
+            File dir = projectDir.toFile();
+            TmcProjectFile projectFile;
+            File file = new File(dir, PROJECT_FILE);
+            if (file.exists()) {
+                try {
+                    projectFile = TmcProjectFile.load(file);
+                } catch (RuntimeException e) {
+                    throw new IOException("Failed to parse " + file, e);
+                }
+            } else {
+                projectFile = TmcProjectFile.forProject(dir);
+            }
+
+            String sourceDir = (TmcProjectInfo.getProjectType(dir) == TmcProjectType.JAVA_MAVEN) ? "src/main/" : "src/";
+            return new StudentFilePolicy(sourceDir, PathGlobSet.compile(projectFile.getExtraStudentFiles()));
+        }
+
+        /**
+         * Tells whether the file at the given path relative to the project
+         * directory is the student's.
+         */
+        public boolean isStudentFile(String relativePath) {
+            return relativePath.startsWith(sourceDir) || extraStudentFiles.matches(relativePath);
+        }
+    }
+
+    public static class Result {
+        private int filesWritten;
+        private long bytesWritten;
+        private int filesUnchanged;
+        private int studentFilesKept;
+        private int filesDeleted;
+
+        public int getFilesWritten() {
+            return filesWritten;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public int getFilesUnchanged() {
+            return filesUnchanged;
+        }
+
+        public int getStudentFilesKept() {
+            return studentFilesKept;
+        }
+
+        public int getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        @Override
+        public String toString() {
+            return filesWritten + " files written (" + bytesWritten + " bytes), "
+                    + filesUnchanged + " unchanged, "
+                    + studentFilesKept + " student files kept, "
+                    + filesDeleted + " deleted";
+        }
+    }
+
+    /**
+     * Updates the project in the given directory from the template in
+     * oldArchive to the template in newArchive.
+     */
+    public Result update(Path oldArchive, Path newArchive, Path projectDir) throws IOException {
+        Map<String, byte[]> installed = readManifest(oldArchive);
+        if (changesStudentFiles(installed, readManifest(newArchive))) {
+            throw new IOException("The new template changes which files are the student's");
+        }
+        StudentFilePolicy policy = StudentFilePolicy.forProject(projectDir);
+        Path target = projectDir.toAbsolutePath().normalize();
+        Result result = new Result();
+        Set<String> newPaths = new HashSet<String>();
+
+        try (InputStream in = Files.newInputStream(newArchive); ZipInputStream zis = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                String relative = ExerciseArchiveCache.toProjectPath(entry);
+                Path path = resolve(target, relative);
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    continue;
+                }
+                newPaths.add(relative);
+
+                byte[] data = IOUtils.toByteArray(zis);
+                byte[] newHash = hash(data);
+                boolean unchanged = Arrays.equals(installed.get(relative), newHash);
+                boolean exists = Files.isRegularFile(path);
+                if (exists && policy.isStudentFile(relative)) {
+                    if (unchanged) {
+                        result.filesUnchanged++;
+                    } else {
+                        result.studentFilesKept++;
+                    }
+                } else if (exists && unchanged && Arrays.equals(newHash, hash(Files.readAllBytes(path)))) {
+                    // Other files are restored if the student changed them, like in a full update.
+                    result.filesUnchanged++;
+                } else {
+                    Files.createDirectories(path.getParent());
+                    Files.write(path, data);
+                    result.filesWritten++;
+                    result.bytesWritten += data.length;
+                }
+            }
+        }
+
+        if (!ExerciseArchiveCache.isComplete(oldArchive)) {
+            // Files that are not from the template may be in the old archive.
+            return result;
+        }
+        for (Map.Entry<String, byte[]> entry : installed.entrySet()) {
+            String relative = entry.getKey();
+            if (newPaths.contains(relative) || policy.isStudentFile(relative)) {
+                continue;
+            }
+            Path path = resolve(target, relative);
+            if (Files.isRegularFile(path) && Arrays.equals(entry.getValue(), hash(Files.readAllBytes(path)))) {
+                Files.delete(path);
+                result.filesDeleted++;
+            }
+        }
+        return result;
+    }
+
+    private static boolean changesStudentFiles(Map<String, byte[]> installed, Map<String, byte[]> template) {
+        if (!Arrays.equals(installed.get(PROJECT_FILE), template.get(PROJECT_FILE))) {
+            return true;
+        }
+        for (String file : PROJECT_TYPE_FILES) {
+            if (installed.containsKey(file) != template.containsKey(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the content hashes of the files in the archive by their path in the project.
+    private static Map<String, byte[]> readManifest(Path archive) throws IOException {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        try (InputStream in = Files.newInputStream(archive); ZipInputStream zis = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    result.put(ExerciseArchiveCache.toProjectPath(entry), hash(IOUtils.toByteArray(zis)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Path resolve(Path target, String relative) throws IOException {
+        Path path = target.resolve(relative.replace('/', File.separatorChar)).normalize();
+        if (!path.startsWith(target)) {
+            throw new IOException("Bad entry in exercise archive: " + relative);
+        }
+        return path;
+    }
+
+    private static byte[] hash(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
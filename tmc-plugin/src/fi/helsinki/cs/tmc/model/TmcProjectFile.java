@@ -28,6 +28,10 @@ public class TmcProjectFile {
         this.extraStudentFiles = Collections.emptyList();
     }
     
+    /**
+     * Returns the paths of the extra student files, relative to the project directory.
+     * They may be glob patterns as understood by {@link fi.helsinki.cs.tmc.utilities.zip.PathGlobSet}.
+     */
     public List<String> getExtraStudentFiles() {
         return extraStudentFiles;
     }
@@ -1,5 +1,6 @@
 package fi.helsinki.cs.tmc.model;
 
+import fi.helsinki.cs.tmc.utilities.zip.PathGlobSet;
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
 import java.io.File;
 import java.util.regex.Pattern;
@@ -50,7 +51,11 @@ public class TmcProjectInfo {
 
     //TODO: a more robust/elegant/extensible project type recognition system
     public TmcProjectType getProjectType() {
-        String pd = getProjectDirAbsPath();
+        return getProjectType(getProjectDirAsFile());
+    }
+
+    public static TmcProjectType getProjectType(File projectDir) {
+        String pd = projectDir.getAbsolutePath();
         if (new File(pd + File.separatorChar + "pom.xml").exists()) {
             return TmcProjectType.JAVA_MAVEN;
         } else if (new File(pd + File.separatorChar + "Makefile").exists()) {
@@ -78,12 +83,23 @@ public class TmcProjectInfo {
         return project.hashCode();
     }
 
+    /**
+     * Decides what to zip for one zipping run.
+     *
+     * <p>
+     * The project file is read when the decider is created, so a new decider
+     * should be made for each run to pick up changes to it.
+     */
     private abstract static class AbstractZippingDecider implements RecursiveZipper.ZippingDecider {
 
         protected TmcProjectInfo projectInfo;
+        protected File projectParentDir;
+        private PathGlobSet extraStudentFiles;
 
         public AbstractZippingDecider(TmcProjectInfo projectInfo) {
             this.projectInfo = projectInfo;
+            this.projectParentDir = projectInfo.getProjectDirAsFile().getParentFile();
+            this.extraStudentFiles = PathGlobSet.compile(projectInfo.getTmcProjectFile().getExtraStudentFiles());
         }
 
         protected String withoutRootDir(String zipPath) {
@@ -96,30 +112,54 @@ public class TmcProjectInfo {
         }
 
         protected boolean isExplicitlyStudentFile(String zipPath) {
-            // TODO: make glob patterns like 'foo/bar/*/baz/**/xoox.*' possible
-            return projectInfo.getTmcProjectFile().getExtraStudentFiles().contains(withoutRootDir(zipPath));
+            return extraStudentFiles.matches(withoutRootDir(zipPath));
+        }
+
+        protected boolean mayContainExplicitlyStudentFiles(String dirZipPath) {
+            return extraStudentFiles.mayMatchBelow(withoutRootDir(dirZipPath));
         }
 
         protected boolean hasNoSubmitFile(File dir) {
             return new File(dir, ".tmcnosubmit").exists();
         }
 
+        /**
+         * Tells whether the path is never zipped, even if an extra student file pattern matches it.
+         */
+        protected boolean isExcluded(String zipPath) {
+            return false;
+        }
+
         protected abstract boolean isProbablySourceFile(String zipPath);
 
         @Override
         public boolean shouldZip(String zipPath) {
-            File file = new File(projectInfo.getProjectDirAsFile().getParentFile(), zipPath);
+            if (isExcluded(zipPath)) {
+                return false;
+            }
             if (isExplicitlyStudentFile(zipPath)) {
                 return true;
             }
 
-            if (file.isDirectory()) {
-                if (hasNoSubmitFile(file)) {
+            boolean isDir = zipPath.endsWith("/");
+            if (isDir) {
+                if (hasNoSubmitFile(new File(projectParentDir, zipPath))) {
                     return false;
                 }
             }
 
-            return isProbablySourceFile(zipPath);
+            if (isProbablySourceFile(zipPath)) {
+                return true;
+            }
+            // Look into other directories only if an extra student file may be found there.
+            return isDir && mayContainExplicitlyStudentFiles(zipPath);
+        }
+
+        @Override
+        public boolean shouldZipDirectoryEntry(String dirZipPath) {
+            // Directories entered only to look for extra student files (e.g. for a
+            // pattern starting with '**') don't end up in the zip as empty directories.
+            return isExplicitlyStudentFile(dirZipPath) || isProbablySourceFile(dirZipPath);
         }
     }
 
@@ -143,9 +183,14 @@ public class TmcProjectInfo {
             super(projectInfo);
         }
 
+        @Override
+        protected boolean isExcluded(String zipPath) {
+            return rejectPattern.matcher(zipPath).matches();
+        }
+
         @Override
         protected boolean isProbablySourceFile(String zipPath) {
-            return !rejectPattern.matcher(zipPath).matches();
+            return true;
         }
     }
 }
@@ -0,0 +1,172 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of document texts, bounded by their total size.
+ *
+ * <p>
+ * Documents are held weakly, so a copy goes away with its document. When the
+ * copies take more than the given number of bytes, the least recently used ones
+ * are dropped, but never the one last used. The eviction listener is told
+ * about the dropped ones.
+ *
+ * <p>
+ * Not thread-safe, except for {@link #getByteFootprint()} and {@link #size()}.
+ *
+ * @param <K> the document type.
+ */
+class DocumentTextCache<K> {
+    private static final int BYTES_PER_CHAR = 2;
+
+    /**
+     * Told about documents dropped because the cache is full.
+     * Called in the thread that modified the cache.
+     */
+    public interface EvictionListener<K> {
+        void evicted(K doc);
+    }
+
+    private static class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        public WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof WeakKey)) {
+                return false;
+            }
+            Object key = get();
+            return key != null && key == ((WeakKey<?>) obj).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final long maxBytes;
+    private final EvictionListener<K> evictionListener;
+    private final LinkedHashMap<WeakKey<K>, StringBuilder> texts;
+    private final ReferenceQueue<K> collectedKeys;
+    private volatile long chars;
+    private volatile int size;
+
+    public DocumentTextCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    public DocumentTextCache(long maxBytes, EvictionListener<K> evictionListener) {
+        this.maxBytes = maxBytes;
+        this.evictionListener = evictionListener;
+        this.texts = new LinkedHashMap<WeakKey<K>, StringBuilder>(16, 0.75f, true);
+        this.collectedKeys = new ReferenceQueue<K>();
+    }
+
+    public boolean contains(K doc) {
+        expungeCollected();
+        return texts.containsKey(lookupKey(doc));
+    }
+
+    /**
+     * Returns the cached text, or null. The text must not be modified directly.
+     */
+    public CharSequence get(K doc) {
+        expungeCollected();
+        return texts.get(lookupKey(doc));
+    }
+
+    public void put(K doc, String text) {
+        expungeCollected();
+        WeakKey<K> key = new WeakKey<K>(doc, collectedKeys);
+        StringBuilder old = texts.remove(key);
+        if (old != null) {
+            chars -= old.length();
+        }
+        texts.put(key, new StringBuilder(text));
+        chars += text.length();
+        updateSizeAndEvict();
+    }
+
+    public void insert(K doc, int offset, String text) {
+        StringBuilder sb = texts.get(lookupKey(doc));
+        sb.insert(offset, text);
+        chars += text.length();
+        updateSizeAndEvict();
+    }
+
+    public void delete(K doc, int offset, int length) {
+        StringBuilder sb = texts.get(lookupKey(doc));
+        sb.delete(offset, offset + length);
+        chars -= length;
+    }
+
+    public void remove(K doc) {
+        StringBuilder old = texts.remove(lookupKey(doc));
+        if (old != null) {
+            chars -= old.length();
+        }
+        size = texts.size();
+    }
+
+    public void clear() {
+        texts.clear();
+        chars = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns roughly how many bytes the cached texts take.
+     */
+    public long getByteFootprint() {
+        return chars * BYTES_PER_CHAR;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private WeakKey<K> lookupKey(K doc) {
+        return new WeakKey<K>(doc, null);
+    }
+
+    private void updateSizeAndEvict() {
+        // The most recently used entry is last.
+        Iterator<Map.Entry<WeakKey<K>, StringBuilder>> i = texts.entrySet().iterator();
+        while (getByteFootprint() > maxBytes && texts.size() > 1) {
+            Map.Entry<WeakKey<K>, StringBuilder> entry = i.next();
+            chars -= entry.getValue().length();
+            i.remove();
+            K doc = entry.getKey().get();
+            if (doc != null && evictionListener != null) {
+                evictionListener.evicted(doc);
+            }
+        }
+        size = texts.size();
+    }
+
+    private void expungeCollected() {
+        Reference<? extends K> ref;
+        while ((ref = collectedKeys.poll()) != null) {
+            // A cleared key still equals itself.
+            StringBuilder old = texts.remove(ref);
+            if (old != null) {
+                chars -= old.length();
+            }
+        }
+        size = texts.size();
+    }
+}
@@ -0,0 +1,131 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.utilities.JsonMaker;
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.CoalescingTask;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+
+/**
+ * Merges consecutive text edits to the same file into one event.
+ *
+ * <p>
+ * An event is sent {@link #WINDOW} milliseconds after the first edit it contains,
+ * or earlier if an edit to another file, an edit that does or doesn't contain
+ * the full document unlike the pending ones, or a separately sent event comes
+ * in between.
+ *
+ * <p>
+ * The patch lists of the merged edits are concatenated in order. Each patch's
+ * offsets refer to the text as it was just before that edit, i.e. with the
+ * earlier patches already applied. {@code patch_apply} applies a list in order
+ * and looks for each patch at its offset plus the drift of the earlier ones,
+ * so applying the merged list once gives the same text as applying the edits
+ * one by one.
+ */
+class EditCoalescer implements Closeable {
+    /*package*/ static final int WINDOW = 1500; // milliseconds
+    private static final int MAX_PATCH_LENGTH = 64 * 1024;
+
+    private static class PendingEdit {
+        private final Exercise exercise;
+        private final String filePath;
+        private final StringBuilder patches;
+        private final boolean fullDocument;
+        private boolean containsInsert;
+        private int editCount;
+
+        public PendingEdit(Exercise exercise, String filePath, boolean fullDocument) {
+            this.exercise = exercise;
+            this.filePath = filePath;
+            this.patches = new StringBuilder();
+            this.fullDocument = fullDocument;
+        }
+    }
+
+    private final EventReceiver receiver;
+    private final CoalescingTask flushTask;
+    private PendingEdit pending; // guarded by this
+
+    public EditCoalescer(EventReceiver receiver) {
+        this.receiver = receiver;
+        this.flushTask = new CoalescingTask("Text edit coalescer", WINDOW, new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Adds an insert or remove to the pending event of the file.
+     *
+     * @param fullDocument whether the patches contain the whole document.
+     */
+    public void addEdit(Exercise exercise, String filePath, boolean isInsert, String patches, boolean fullDocument) {
+        boolean sendNow;
+        synchronized (this) {
+            if (pending != null && (pending.exercise != exercise
+                    || !pending.filePath.equals(filePath)
+                    || pending.fullDocument != fullDocument)) {
+                flush();
+            }
+            if (pending == null) {
+                pending = new PendingEdit(exercise, filePath, fullDocument);
+            }
+            pending.patches.append(patches);
+            pending.containsInsert |= isInsert;
+            pending.editCount++;
+            sendNow = pending.patches.length() > MAX_PATCH_LENGTH;
+        }
+
+        if (sendNow) {
+            flush();
+        } else {
+            flushTask.request();
+        }
+    }
+
+    /**
+     * Sends an event right away, after any pending edits, e.g. for a paste.
+     */
+    public void sendSeparately(Exercise exercise, String eventType, String description) {
+        synchronized (this) {
+            flush();
+            send(exercise, eventType, description);
+        }
+    }
+
+    /**
+     * Sends the pending edits now.
+     */
+    public synchronized void flush() {
+        if (pending == null) {
+            return;
+        }
+        PendingEdit edit = pending;
+        pending = null;
+
+        JsonMaker description = JsonMaker.create()
+                .add("file", edit.filePath)
+                .add("patches", edit.patches.toString())
+                .add("full_document", edit.fullDocument);
+        if (edit.editCount > 1) {
+            description.add("coalesced_edits", edit.editCount);
+        }
+        send(edit.exercise, edit.containsInsert ? "text_insert" : "text_remove", description.toString());
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private void send(Exercise exercise, String eventType, String description) {
+        LoggableEvent event = new LoggableEvent(exercise, eventType, description.getBytes(Charset.forName("UTF-8")));
+        receiver.receiveEvent(event);
+    }
+}
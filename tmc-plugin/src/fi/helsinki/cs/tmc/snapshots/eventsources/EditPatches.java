@@ -0,0 +1,69 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.util.LinkedList;
+import java.util.List;
+import name.fraser.neil.plaintext.DiffMatchPatch;
+import name.fraser.neil.plaintext.DiffMatchPatch.Diff;
+import name.fraser.neil.plaintext.DiffMatchPatch.Operation;
+import name.fraser.neil.plaintext.DiffMatchPatch.Patch;
+
+/**
+ * Builds patches for single insertions and removals directly from the edit,
+ * without diffing the whole document.
+ *
+ * <p>
+ * The patches have the same form as those from {@link DiffMatchPatch#patch_make},
+ * with {@link DiffMatchPatch#Patch_Margin} characters of context on each side.
+ */
+class EditPatches {
+    private EditPatches() {
+    }
+
+    /**
+     * Returns the patch for inserting {@code inserted} at {@code offset} of {@code before}.
+     */
+    public static List<Patch> forInsert(DiffMatchPatch dmp, CharSequence before, int offset, String inserted) {
+        return make(dmp, before, offset, "", inserted);
+    }
+
+    /**
+     * Returns the patch for removing {@code length} characters at {@code offset} of {@code before}.
+     */
+    public static List<Patch> forRemove(DiffMatchPatch dmp, CharSequence before, int offset, int length) {
+        String removed = before.subSequence(offset, offset + length).toString();
+        return make(dmp, before, offset, removed, "");
+    }
+
+    private static List<Patch> make(DiffMatchPatch dmp, CharSequence before, int offset, String removed, String inserted) {
+        LinkedList<Patch> result = new LinkedList<Patch>();
+        if (removed.isEmpty() && inserted.isEmpty()) {
+            return result;
+        }
+
+        int margin = dmp.Patch_Margin;
+        int end = offset + removed.length();
+        String prefix = before.subSequence(Math.max(0, offset - margin), offset).toString();
+        String suffix = before.subSequence(end, Math.min(before.length(), end + margin)).toString();
+
+        Patch patch = new Patch();
+        if (!prefix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, prefix));
+        }
+        if (!removed.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.DELETE, removed));
+        }
+        if (!inserted.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.INSERT, inserted));
+        }
+        if (!suffix.isEmpty()) {
+            patch.diffs.add(new Diff(Operation.EQUAL, suffix));
+        }
+        patch.start1 = offset - prefix.length();
+        patch.start2 = patch.start1;
+        patch.length1 = prefix.length() + removed.length() + suffix.length();
+        patch.length2 = prefix.length() + inserted.length() + suffix.length();
+
+        result.add(patch);
+        return result;
+    }
+}
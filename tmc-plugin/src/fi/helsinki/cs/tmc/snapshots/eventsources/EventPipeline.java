@@ -0,0 +1,130 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.RequestProcessor;
+
+/**
+ * A single background thread that turns what event source listeners captured
+ * into events.
+ *
+ * <p>
+ * Listeners called in the EDT should only capture what they must read there
+ * and {@link #submit} the rest. Tasks are run one at a time in submission order.
+ * The pipeline also keeps statistics of how long the listeners took in the EDT.
+ */
+public class EventPipeline implements Closeable {
+    private static final Logger log = Logger.getLogger(EventPipeline.class.getName());
+
+    /**
+     * Time spent by one listener.
+     */
+    public static class ListenerTime {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getAverageNanos() {
+            long n = calls.get();
+            return n > 0 ? totalNanos.get() / n : 0;
+        }
+
+        @Override
+        public String toString() {
+            return calls.get() + " calls, average " + TimeUnit.NANOSECONDS.toMicros(getAverageNanos())
+                    + " us, max " + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + " us";
+        }
+    }
+
+    private final RequestProcessor processor;
+    private final ConcurrentHashMap<String, ListenerTime> listenerTimes;
+
+    public EventPipeline() {
+        this.processor = new RequestProcessor("Snapshot event pipeline", 1, true);
+        this.listenerTimes = new ConcurrentHashMap<String, ListenerTime>();
+    }
+
+    /**
+     * Runs the task in the pipeline thread after previously submitted tasks.
+     */
+    public void submit(final Runnable task) {
+        if (processor.isShutdown()) {
+            log.log(Level.FINE, "Event pipeline closed, dropping a task");
+            return;
+        }
+        processor.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.log(Level.INFO, "Error processing a snapshot event", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the time a listener spent since it started at {@code startNanos},
+     * as given by {@link System#nanoTime()}.
+     */
+    public void recordListenerTime(String listener, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        ListenerTime time = listenerTimes.get(listener);
+        if (time == null) {
+            listenerTimes.putIfAbsent(listener, new ListenerTime());
+            time = listenerTimes.get(listener);
+        }
+        time.record(nanos);
+    }
+
+    /**
+     * Returns the listener statistics by listener name.
+     */
+    public Map<String, ListenerTime> getListenerTimes() {
+        return new TreeMap<String, ListenerTime>(listenerTimes);
+    }
+
+    /**
+     * Processes the submitted tasks and stops the thread.
+     */
+    @Override
+    public void close() {
+        processor.shutdown();
+        try {
+            processor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Map.Entry<String, ListenerTime> entry : getListenerTimes().entrySet()) {
+            log.log(Level.INFO, "Time spent in {0}: {1}", new Object[] {entry.getKey(), entry.getValue()});
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sizes, modification times and content hashes of the files of a project,
+ * shared by the things that want to know whether a file has changed.
+ *
+ * <p>
+ * A file is read and hashed only if its size or modification time differs
+ * from when it was last looked at, so a file is hashed once per change no
+ * matter how many users ask about it.
+ *
+ * <p>
+ * Thread-safe.
+ */
+class FileStateCache {
+    /**
+     * What a file looked like at some point. Immutable.
+     */
+    public static class FileState {
+        private final long size;
+        private final long lastModified;
+        private final byte[] hash; // null if the file couldn't be read
+
+        private FileState(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /**
+         * Tells whether the file has the same content in both states.
+         * A file that couldn't be read is assumed changed.
+         */
+        public boolean sameContentAs(FileState other) {
+            if (other == this) {
+                return true;
+            }
+            return other != null && hash != null && other.hash != null && Arrays.equals(hash, other.hash);
+        }
+    }
+
+    private final Map<String, FileState> states = new HashMap<String, FileState>(); // guarded by this
+
+    /**
+     * Returns the current state of the file.
+     *
+     * <p>
+     * If its size and modification time are unchanged since the last call,
+     * the same instance as then is returned.
+     *
+     * @param zipPath the key to remember the file by.
+     */
+    public FileState get(String zipPath, File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            FileState old = states.get(zipPath);
+            if (old != null && old.size == size && old.lastModified == lastModified) {
+                return old;
+            }
+        }
+
+        // Hashing happens outside the lock. If two threads race here, both
+        // get equal states and the last one is remembered.
+        FileState state = new FileState(size, lastModified, hash(file));
+        synchronized (this) {
+            states.put(zipPath, state);
+        }
+        return state;
+    }
+
+    /**
+     * Forgets the files not among the given ones.
+     */
+    public synchronized void retainOnly(Collection<String> zipPaths) {
+        Set<String> keep = (zipPaths instanceof Set) ? (Set<String>) zipPaths : new HashSet<String>(zipPaths);
+        states.keySet().retainAll(keep);
+    }
+
+    private static byte[] hash(File file) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(file.toPath()));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
@@ -4,7 +4,7 @@ import fi.helsinki.cs.tmc.core.domain.Exercise;
 
 import com.google.gson.Gson;
 
-import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ExerciseResolver;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.snapshots.EventReceiver;
@@ -20,19 +20,17 @@ public class ProjectActionEventSource implements ProjectActionCaptor.Listener {
     private static final Logger log = Logger.getLogger(ProjectActionEventSource.class.getName());
 
     private final ProjectMediator projects;
-    private final CourseDb courseDb;
     private EventReceiver receiver;
 
     public ProjectActionEventSource(EventReceiver receiver) {
         this.projects = ProjectMediator.getInstance();
-        this.courseDb = CourseDb.getInstance();
         this.receiver = receiver;
     }
 
     @Override
     public void actionInvoked(Project project, String command) {
         TmcProjectInfo projectInfo = projects.wrapProject(project);
-        Exercise ex = projects.tryGetExerciseForProject(projectInfo, courseDb);
+        Exercise ex = ExerciseResolver.getInstance().tryGetExerciseForProject(projectInfo);
         if (ex != null) {
             Object data = Collections.singletonMap("command", command);
             String jsonData = new Gson().toJson(data);
@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the files of a project as of its previous source snapshot, so
+ * that a snapshot of an unchanged project can be skipped before zipping.
+ *
+ * <p>
+ * The file list is compared first. The files themselves are compared through
+ * a {@link FileStateCache}, so a file whose content hash is the same as before
+ * (e.g. after a save without changes) doesn't count as a change.
+ *
+ * <p>
+ * Not thread-safe.
+ */
+class ProjectFingerprint {
+    private final FileStateCache fileStates;
+    private Map<String, FileStateCache.FileState> files; // null until the first update
+
+    public ProjectFingerprint() {
+        this(new FileStateCache());
+    }
+
+    public ProjectFingerprint(FileStateCache fileStates) {
+        this.fileStates = fileStates;
+    }
+
+    /**
+     * Updates the fingerprint to the given files and tells whether
+     * they differ from the previous update.
+     *
+     * @param rootParent the directory that zip paths are relative to.
+     * @param zipPaths the files and directories going into the snapshot,
+     *                 with directory paths ending in a slash.
+     */
+    public boolean update(File rootParent, List<String> zipPaths) {
+        Map<String, FileStateCache.FileState> old = files;
+        Map<String, FileStateCache.FileState> current = new HashMap<String, FileStateCache.FileState>();
+        boolean changed = old == null || old.size() != zipPaths.size();
+
+        for (String zipPath : zipPaths) {
+            if (zipPath.endsWith("/")) {
+                current.put(zipPath, null);
+                changed |= (old != null && !old.containsKey(zipPath));
+                continue;
+            }
+
+            FileStateCache.FileState state = fileStates.get(zipPath, new File(rootParent, zipPath));
+            current.put(zipPath, state);
+            FileStateCache.FileState oldState = old != null ? old.get(zipPath) : null;
+            changed |= !state.sameContentAs(oldState);
+        }
+
+        files = current;
+        // The snapshot contains these files, so the rest needn't be remembered.
+        fileStates.retainOnly(current.keySet());
+        return changed;
+    }
+
+    /**
+     * Forgets the files so that the next update counts as a change.
+     * Called when a snapshot fails.
+     */
+    public void invalidate() {
+        files = null;
+    }
+}
@@ -0,0 +1,131 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the files in the previous source snapshot of a project so that
+ * the next snapshot can contain only the files that were added or changed.
+ *
+ * <p>
+ * Files are compared through a {@link FileStateCache}, which hashes a file
+ * only if its size or modification time changed. Every
+ * {@link #FULL_SNAPSHOT_INTERVAL}th snapshot is a full one so that the
+ * receiver can resynchronize.
+ *
+ * <p>
+ * Not thread-safe. Callers must not take two snapshots of the same project at once.
+ */
+class SnapshotManifest {
+    /*package*/ static final int FULL_SNAPSHOT_INTERVAL = 20;
+
+    private final FileStateCache fileStates;
+    private final Map<String, FileStateCache.FileState> files;
+    private Set<String> seenInCurrentSnapshot;
+    private int deltasSinceFullSnapshot;
+    private boolean valid;
+
+    public SnapshotManifest() {
+        this(new FileStateCache());
+    }
+
+    public SnapshotManifest(FileStateCache fileStates) {
+        this.fileStates = fileStates;
+        this.files = new HashMap<String, FileStateCache.FileState>();
+        this.valid = false;
+    }
+
+    /**
+     * Tells whether the next snapshot must contain all files.
+     */
+    public boolean isFullSnapshotDue() {
+        return !valid || deltasSinceFullSnapshot >= FULL_SNAPSHOT_INTERVAL - 1;
+    }
+
+    /**
+     * Returns a decider that selects, among the files the given decider selects,
+     * the ones that have changed since the previous snapshot.
+     *
+     * <p>
+     * If {@code full} is set, everything the given decider selects is zipped.
+     * Either way, the manifest is updated as the zipper asks about files.
+     *
+     * @param rootParent the directory that zip paths are relative to.
+     */
+    public RecursiveZipper.ZippingDecider beginSnapshot(
+            final File rootParent,
+            final RecursiveZipper.ZippingDecider subdecider,
+            final boolean full) {
+        seenInCurrentSnapshot = new HashSet<String>();
+
+        return new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(String zipPath) {
+                if (!subdecider.shouldZip(zipPath)) {
+                    return false;
+                }
+                if (zipPath.endsWith("/")) {
+                    return true;
+                }
+                boolean changed = update(zipPath, new File(rootParent, zipPath));
+                return full || changed;
+            }
+
+            @Override
+            public boolean shouldZipDirectoryEntry(String dirZipPath) {
+                return subdecider.shouldZipDirectoryEntry(dirZipPath);
+            }
+        };
+    }
+
+    /**
+     * Finishes a successful snapshot begun with {@link #beginSnapshot}.
+     *
+     * @return the zip paths of files that existed in the previous snapshot but not anymore.
+     */
+    public List<String> finishSnapshot(boolean full) {
+        List<String> deleted = new ArrayList<String>();
+        Iterator<String> i = files.keySet().iterator();
+        while (i.hasNext()) {
+            String zipPath = i.next();
+            if (!seenInCurrentSnapshot.contains(zipPath)) {
+                deleted.add(zipPath);
+                i.remove();
+            }
+        }
+        seenInCurrentSnapshot = null;
+
+        if (full) {
+            deltasSinceFullSnapshot = 0;
+        } else {
+            deltasSinceFullSnapshot++;
+        }
+        valid = true;
+        return deleted;
+    }
+
+    /**
+     * Forgets everything so that the next snapshot is a full one.
+     * Called when a snapshot fails half way.
+     */
+    public void invalidate() {
+        files.clear();
+        seenInCurrentSnapshot = null;
+        valid = false;
+    }
+
+    private boolean update(String zipPath, File file) {
+        seenInCurrentSnapshot.add(zipPath);
+        FileStateCache.FileState state = fileStates.get(zipPath, file);
+        FileStateCache.FileState old = files.put(zipPath, state);
+        return !state.sameContentAs(old);
+    }
+}
@@ -1,29 +1,42 @@
 package fi.helsinki.cs.tmc.snapshots.eventsources;
 
 import fi.helsinki.cs.tmc.core.domain.Exercise;
-import fi.helsinki.cs.tmc.model.CourseDb;
-import fi.helsinki.cs.tmc.model.ProjectMediator;
+import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
+import fi.helsinki.cs.tmc.coreimpl.TmcCoreSettingsImpl;
+import fi.helsinki.cs.tmc.model.ExerciseResolver;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.snapshots.EventReceiver;
 import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
-import fi.helsinki.cs.tmc.utilities.ActiveThreadSet;
 import fi.helsinki.cs.tmc.core.utilities.JsonMaker;
+import fi.helsinki.cs.tmc.utilities.LatencyHistogram;
 import fi.helsinki.cs.tmc.utilities.TmcFileUtils;
 import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
+import fi.helsinki.cs.tmc.utilities.TokenBucket;
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
+import org.apache.commons.lang3.StringUtils;
 import org.openide.filesystems.FileAttributeEvent;
 import org.openide.filesystems.FileChangeListener;
 import org.openide.filesystems.FileEvent;
 import org.openide.filesystems.FileObject;
 import org.openide.filesystems.FileRenameEvent;
 import org.openide.filesystems.FileUtil;
+import org.openide.util.RequestProcessor;
 
 public class SourceSnapshotEventSource implements FileChangeListener, Closeable {
     private enum ChangeType {
@@ -32,14 +45,91 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
 
     private static final Logger log = Logger.getLogger(SourceSnapshotEventSource.class.getName());
 
+    private static final int MAX_CONCURRENT_SNAPSHOTS = 2;
+
+    // Snapshots of a project beyond this rate are delayed and merged.
+    private static final int SNAPSHOT_BURST = 10;
+    private static final double SNAPSHOTS_PER_SECOND = 0.5;
+
     private EventReceiver receiver;
-    private ActiveThreadSet snapshotterThreads;
+    private EventReceiver deltaReceiver;
+    private RequestProcessor snapshotProcessor;
+    private final Map<File, SnapshotTask> pendingSnapshots; // by project dir
+    private final Set<RequestProcessor.Task> unfinishedSnapshots; // guarded by pendingSnapshots
+    private final Map<File, SnapshotManifest> manifests; // by project dir, for delta snapshots
+    private final Map<File, ProjectFingerprint> fingerprints; // by project dir
+    private final Map<File, FileStateCache> fileStates; // by project dir, shared by the above
+    private final Map<File, TokenBucket> snapshotRates; // by project dir
+    private final AtomicLong mergedSnapshots;
+    private final LatencyHistogram zipTimes;
+    private volatile boolean deltaSnapshotsAllowed;
     private boolean closed;
 
     public SourceSnapshotEventSource(EventReceiver receiver) {
+        this(receiver, receiver);
+    }
+
+    /**
+     * @param deltaReceiver receives the snapshots while delta snapshots are sent.
+     *                      It must not drop events as duplicates, since two deltas
+     *                      may be equal and each builds on the previous ones.
+     */
+    public SourceSnapshotEventSource(EventReceiver receiver, EventReceiver deltaReceiver) {
         this.receiver = receiver;
+        this.deltaReceiver = deltaReceiver;
+
+        // Not interruptible, since an interrupt would make a running zip fail.
+        this.snapshotProcessor = new RequestProcessor("Source snapshot", MAX_CONCURRENT_SNAPSHOTS, false);
+        this.pendingSnapshots = new HashMap<File, SnapshotTask>();
+        this.unfinishedSnapshots = new HashSet<RequestProcessor.Task>();
+        this.manifests = new ConcurrentHashMap<File, SnapshotManifest>();
+        this.fingerprints = new ConcurrentHashMap<File, ProjectFingerprint>();
+        this.fileStates = new ConcurrentHashMap<File, FileStateCache>();
+        this.snapshotRates = new HashMap<File, TokenBucket>();
+        this.mergedSnapshots = new AtomicLong();
+        this.zipTimes = new LatencyHistogram();
+        this.deltaSnapshotsAllowed = true;
+    }
+
+    /**
+     * Sets whether delta snapshots may be sent if the settings ask for them.
+     *
+     * <p>
+     * The server can only rebuild a project from delta snapshots if none of
+     * them is lost, so they should be disallowed when the receiver can't
+     * tell about lost events.
+     */
+    public void setDeltaSnapshotsAllowed(boolean allowed) {
+        this.deltaSnapshotsAllowed = allowed;
+    }
+
+    /**
+     * Makes the next snapshot of every project a full one.
+     *
+     * <p>
+     * Called when events may have been lost on the way to the server,
+     * since later delta snapshots would build on the lost ones.
+     */
+    public void forceFullSnapshots() {
+        for (SnapshotManifest manifest : manifests.values()) {
+            synchronized (manifest) {
+                manifest.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of snapshots merged into a later snapshot of the same project.
+     */
+    public long getMergedSnapshotCount() {
+        return mergedSnapshots.get();
+    }
 
-        this.snapshotterThreads = new ActiveThreadSet();
+    /**
+     * Returns how long it took to zip the snapshots.
+     */
+    public LatencyHistogram getZipTimes() {
+        return zipTimes;
     }
 
     public void startListeningToFileChanges() {
@@ -48,18 +138,28 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
 
     /**
      * Waits for all pending events to be sent.
+     *
+     * <p>
+     * Snapshots still waiting for their delay are taken right away.
      */
     @Override
     public void close() {
         TmcSwingUtilities.ensureEdt(new Runnable() {
             @Override
             public void run() {
-                try {
-                    closed = true;
-                    FileUtil.removeFileChangeListener(SourceSnapshotEventSource.this);
-                    snapshotterThreads.joinAll();
-                } catch (InterruptedException ex) {
+                closed = true;
+                FileUtil.removeFileChangeListener(SourceSnapshotEventSource.this);
+                List<RequestProcessor.Task> tasks;
+                synchronized (pendingSnapshots) {
+                    for (SnapshotTask pending : pendingSnapshots.values()) {
+                        pending.rpTask.schedule(0);
+                    }
+                    tasks = new ArrayList<RequestProcessor.Task>(unfinishedSnapshots);
                 }
+                for (RequestProcessor.Task task : tasks) {
+                    task.waitFinished();
+                }
+                snapshotProcessor.shutdown();
             }
         });
     }
@@ -102,7 +202,7 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
         JsonMaker metadata = JsonMaker.create()
                 .add("cause", changeType.name().toLowerCase())
                 .add("file", filePath);
-        invokeSnapshotThreadViaEdt(fileObject, metadata);
+        scheduleSnapshotViaEdt(fileObject, metadata);
     }
 
     private void reactToRename(final ChangeType changeType, final FileRenameEvent renameEvent) {
@@ -115,12 +215,12 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
                 .add("cause", changeType.name().toLowerCase())
                 .add("file", filePath)
                 .add("previous_name", renameEvent.getName() + "." + renameEvent.getExt());
-        invokeSnapshotThreadViaEdt(renameEvent.getFile(), metadata);
+        scheduleSnapshotViaEdt(renameEvent.getFile(), metadata);
     }
 
     // I have no idea what thread FileUtil callbacks are made in,
     // so I'll go to the EDT to safely read the global state.
-    private void invokeSnapshotThreadViaEdt(final FileObject fileObject, final JsonMaker metadata) {
+    private void scheduleSnapshotViaEdt(final FileObject fileObject, final JsonMaker metadata) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -129,48 +229,74 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
                 }
 
                 try {
-                    startSnapshotThread(fileObject, metadata);
+                    scheduleSnapshot(fileObject, metadata);
                 } catch (Exception e) {
-                    log.log(Level.WARNING, "Failed to start snapshot thread", e);
+                    log.log(Level.WARNING, "Failed to schedule source snapshot", e);
                 }
             }
         });
     }
 
-    private void startSnapshotThread(FileObject changedFile, JsonMaker metadata) {
+    private void scheduleSnapshot(FileObject changedFile, JsonMaker metadata) {
         log.log(Level.FINE, "Changed file: {0}", changedFile);
 
-        ProjectMediator pm = ProjectMediator.getInstance();
-        TmcProjectInfo project = pm.tryGetProjectOwningFile(changedFile);
+        ExerciseResolver resolver = ExerciseResolver.getInstance();
+        TmcProjectInfo project = resolver.tryGetProjectOwningFile(changedFile);
         log.log(Level.FINE, "Project: {0}", project);
         // only log TMC-projects
         if (project != null) {
-            CourseDb courseDb = CourseDb.getInstance();
-            Exercise exercise = pm.tryGetExerciseForProject(project, courseDb);
+            Exercise exercise = resolver.tryGetExerciseForFile(changedFile);
 
             if (exercise != null) {
                 log.log(Level.FINER, "Exercise: {0}", exercise);
 
-                SnapshotThread thread = new SnapshotThread(receiver, exercise, project, metadata);
-                snapshotterThreads.addThread(thread);
-                thread.setDaemon(true);
-                thread.start();
+                // A burst of changes (e.g. a VCS checkout) results in one snapshot per project.
+                // If the project changes too often, the snapshot waits and so more changes merge into it.
+                File projectDir = project.getProjectDirAsFile();
+                synchronized (pendingSnapshots) {
+                    SnapshotTask pending = pendingSnapshots.get(projectDir);
+                    if (pending != null) {
+                        pending.coalesce(exercise, metadata);
+                        mergedSnapshots.incrementAndGet();
+                    } else {
+                        SnapshotTask task = new SnapshotTask(exercise, project, metadata);
+                        task.rpTask = snapshotProcessor.create(task);
+                        pendingSnapshots.put(projectDir, task);
+                        unfinishedSnapshots.add(task.rpTask);
+                        task.rpTask.schedule((int) snapshotRate(projectDir).reserve());
+                    }
+                }
             }
         }
     }
 
-    private static class SnapshotThread extends Thread {
-        private final EventReceiver receiver;
-        private final Exercise exercise;
+    /**
+     * Zips a project and sends it as a snapshot.
+     * 
+     * <p>
+     * While the task is waiting to be run, further changes to the same project
+     * are merged into it. The latest change determines the metadata.
+     */
+    private class SnapshotTask implements Runnable {
         private final TmcProjectInfo projectInfo;
-        private final JsonMaker metadata;
+        private RequestProcessor.Task rpTask;
+        private Exercise exercise;
+        private JsonMaker metadata;
+        private int coalescedCount;
+        private boolean started; // A pending task is rescheduled on close, so it may run twice.
 
-        private SnapshotThread(EventReceiver receiver, Exercise exercise, TmcProjectInfo projectInfo, JsonMaker metadata) {
-            super("Source snapshot");
-            this.receiver = receiver;
+        private SnapshotTask(Exercise exercise, TmcProjectInfo projectInfo, JsonMaker metadata) {
             this.exercise = exercise;
             this.projectInfo = projectInfo;
             this.metadata = metadata;
+            this.coalescedCount = 0;
+        }
+
+        // Called with pendingSnapshots locked
+        private void coalesce(Exercise exercise, JsonMaker metadata) {
+            this.exercise = exercise;
+            this.metadata = metadata;
+            this.coalescedCount++;
         }
 
         @Override
@@ -179,17 +305,138 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             // For now we just accept that. Not sure if the FileObject API would allow some sort of
             // global locking of the project.
             File projectDir = projectInfo.getProjectDirAsFile();
+            Exercise exercise;
+            JsonMaker metadata;
+            synchronized (pendingSnapshots) {
+                if (started) {
+                    return;
+                }
+                started = true;
+                pendingSnapshots.remove(projectDir);
+                exercise = this.exercise;
+                metadata = this.metadata;
+                if (coalescedCount > 0) {
+                    metadata.add("coalesced_changes", coalescedCount);
+                }
+            }
+
             RecursiveZipper.ZippingDecider zippingDecider = new ZippingDeciderWrapper(projectInfo, projectInfo.getZippingDecider());
-            RecursiveZipper zipper = new RecursiveZipper(projectDir, zippingDecider);
+            ProjectFingerprint fingerprint = getFingerprint(projectDir);
+            boolean succeeded = false;
             try {
-                byte[] data = zipper.zipProjectSources();
-                LoggableEvent event = new LoggableEvent(exercise, "code_snapshot", data, metadata);
-                receiver.receiveEvent(event);
+                if (!hasChanged(projectDir, zippingDecider, fingerprint)) {
+                    log.log(Level.FINE, "Skipping snapshot of unchanged project: {0}", projectDir);
+                    succeeded = true;
+                    return;
+                }
+
+                if (isSendingDeltaSnapshots()) {
+                    sendDelta(projectDir, zippingDecider, exercise, metadata);
+                } else {
+                    long startTime = System.nanoTime();
+                    RecursiveZipper zipper = new RecursiveZipper(projectDir, zippingDecider);
+                    zipper.setParallel(true);
+                    byte[] data = zipper.zipProjectSources();
+                    zipTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                    receiver.receiveEvent(new LoggableEvent(exercise, "code_snapshot", data, metadata));
+                }
+                succeeded = true;
             } catch (IOException ex) {
                 // Warning might be also appropriate, but this often races with project closing
                 // during integration tests, and there warning would cause a dialog to appear,
                 // failing the test.
                 log.log(Level.INFO, "Error zipping project sources in: " + projectDir, ex);
+            } finally {
+                if (!succeeded) {
+                    // Otherwise the fingerprint would say the unsent files are unchanged.
+                    synchronized (fingerprint) {
+                        fingerprint.invalidate();
+                    }
+                }
+                synchronized (pendingSnapshots) {
+                    unfinishedSnapshots.remove(rpTask);
+                }
+            }
+        }
+    }
+
+    // Called with pendingSnapshots locked
+    private TokenBucket snapshotRate(File projectDir) {
+        TokenBucket bucket = snapshotRates.get(projectDir);
+        if (bucket == null) {
+            bucket = new TokenBucket(SNAPSHOT_BURST, SNAPSHOTS_PER_SECOND);
+            snapshotRates.put(projectDir, bucket);
+        }
+        return bucket;
+    }
+
+    private ProjectFingerprint getFingerprint(File projectDir) {
+        ProjectFingerprint fingerprint = fingerprints.get(projectDir);
+        if (fingerprint == null) {
+            fingerprints.putIfAbsent(projectDir, new ProjectFingerprint(getFileStates(projectDir)));
+            fingerprint = fingerprints.get(projectDir);
+        }
+        return fingerprint;
+    }
+
+    private FileStateCache getFileStates(File projectDir) {
+        FileStateCache cache = fileStates.get(projectDir);
+        if (cache == null) {
+            fileStates.putIfAbsent(projectDir, new FileStateCache());
+            cache = fileStates.get(projectDir);
+        }
+        return cache;
+    }
+
+    /**
+     * Tells whether the files going into the snapshot have changed since
+     * the previous snapshot, without zipping them.
+     */
+    private boolean hasChanged(File projectDir, RecursiveZipper.ZippingDecider zippingDecider, ProjectFingerprint fingerprint) throws IOException {
+        List<String> zipPaths = new RecursiveZipper(projectDir, zippingDecider).listEntriesToZip();
+        // Two snapshots of the same project may run at once.
+        synchronized (fingerprint) {
+            return fingerprint.update(projectDir.getParentFile(), zipPaths);
+        }
+    }
+
+    private boolean isSendingDeltaSnapshots() {
+        return deltaSnapshotsAllowed && ((TmcCoreSettingsImpl) TmcSettingsHolder.get()).isSendingDeltaSnapshots();
+    }
+
+    /**
+     * Zips only the files changed since the previous snapshot of the project,
+     * or everything if a full snapshot is due, and sends it.
+     *
+     * <p>
+     * The snapshot is sent before the next one of the same project is zipped,
+     * since each delta assumes the previous ones have been applied.
+     */
+    private void sendDelta(File projectDir, RecursiveZipper.ZippingDecider zippingDecider, Exercise exercise, JsonMaker metadata) throws IOException {
+        SnapshotManifest manifest = manifests.get(projectDir);
+        if (manifest == null) {
+            manifests.putIfAbsent(projectDir, new SnapshotManifest(getFileStates(projectDir)));
+            manifest = manifests.get(projectDir);
+        }
+
+        // Two snapshots of the same project may run at once.
+        synchronized (manifest) {
+            long startTime = System.nanoTime();
+            boolean full = manifest.isFullSnapshotDue();
+            RecursiveZipper.ZippingDecider deltaDecider = manifest.beginSnapshot(projectDir.getParentFile(), zippingDecider, full);
+            try {
+                byte[] data = new RecursiveZipper(projectDir, deltaDecider).zipProjectSources();
+                List<String> deleted = manifest.finishSnapshot(full);
+                zipTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
+                metadata.add("snapshot_type", full ? "full" : "delta");
+                if (!full && !deleted.isEmpty()) {
+                    metadata.add("deleted_files", StringUtils.join(deleted, "\n"));
+                }
+                deltaReceiver.receiveEvent(new LoggableEvent(exercise, "code_snapshot", data, metadata));
+            } catch (IOException | RuntimeException ex) {
+                manifest.invalidate();
+                throw ex;
             }
         }
     }
@@ -213,11 +460,11 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
             ".woff"
         };
 
-        private final TmcProjectInfo projectInfo;
+        private final File projectParentDir;
         private final RecursiveZipper.ZippingDecider subdecider;
 
         public ZippingDeciderWrapper(TmcProjectInfo projectInfo, RecursiveZipper.ZippingDecider subdecider) {
-            this.projectInfo = projectInfo;
+            this.projectParentDir = projectInfo.getProjectDirAsFile().getParentFile();
             this.subdecider = subdecider;
         }
 
@@ -240,8 +487,9 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
 
         @Override
         public boolean shouldZip(String zipPath) {
-            File file = new File(projectInfo.getProjectDirAsFile().getParentFile(), zipPath);
-            if (file.isDirectory()) {
+            // Directory paths end in a slash, so there's no need to stat the file to find out.
+            File file = new File(projectParentDir, zipPath);
+            if (zipPath.endsWith("/")) {
                 if (hasNoSnapshotFile(file)) {
                     return false;
                 }
@@ -256,5 +504,10 @@ public class SourceSnapshotEventSource implements FileChangeListener, Closeable
 
             return subdecider.shouldZip(zipPath);
         }
+
+        @Override
+        public boolean shouldZipDirectoryEntry(String dirZipPath) {
+            return subdecider.shouldZipDirectoryEntry(dirZipPath);
+        }
     }
 }
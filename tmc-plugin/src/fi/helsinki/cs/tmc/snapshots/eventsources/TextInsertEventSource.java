@@ -1,11 +1,8 @@
 package fi.helsinki.cs.tmc.snapshots.eventsources;
 
 import fi.helsinki.cs.tmc.core.domain.Exercise;
-import fi.helsinki.cs.tmc.model.CourseDb;
-import fi.helsinki.cs.tmc.model.ProjectMediator;
-import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.ExerciseResolver;
 import fi.helsinki.cs.tmc.snapshots.EventReceiver;
-import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
 import fi.helsinki.cs.tmc.core.utilities.JsonMaker;
 import fi.helsinki.cs.tmc.utilities.TmcFileUtils;
 
@@ -14,12 +11,13 @@ import java.awt.datatransfer.DataFlavor;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.Closeable;
-import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentEvent.EventType;
 import javax.swing.event.DocumentListener;
@@ -37,14 +35,48 @@ import org.openide.util.datatransfer.ExClipboard;
 /**
  * Records large inserts into documents. These are often, but not always,
  * pastes.
+ *
+ * <p>
+ * Other inserts and removals are merged into fewer events by an {@link EditCoalescer}.
+ * The document listener only copies the edited text. Patches and events are made
+ * in the {@link EventPipeline}.
  */
 public class TextInsertEventSource implements Closeable {
     
     private static final Logger log = Logger.getLogger(TextInsertEventSource.class.getName());
     private static final DiffMatchPatch PATCH_GENERATOR = new DiffMatchPatch();
-    private EventReceiver receiver;
+    private static final long MAX_DOCUMENT_CACHE_BYTES = 8 * 1024 * 1024;
+    private EventPipeline pipeline;
+    private EditCoalescer editCoalescer;
     private JTextComponent currentComponent;
-    private Map<Document, String> documentCache;
+    private DocumentTextCache<Document> documentCache; // Only modified in the pipeline thread.
+    private Set<Document> cachedDocuments; // Documents the listener needn't send in full.
+
+    /**
+     * What the document listener captures from an edit in the EDT.
+     */
+    private static class Edit {
+        private final Document doc;
+        private final FileObject fo;
+        private final boolean isInsert;
+        private final int offset;
+        private final int length;
+        private final int docLengthAfter;
+        private final String inserted; // null for removals
+        private final String fullText; // null if the document was already cached
+
+        public Edit(Document doc, FileObject fo, boolean isInsert, int offset, int length, int docLengthAfter, String inserted, String fullText) {
+            this.doc = doc;
+            this.fo = fo;
+            this.isInsert = isInsert;
+            this.offset = offset;
+            this.length = length;
+            this.docLengthAfter = docLengthAfter;
+            this.inserted = inserted;
+            this.fullText = fullText;
+        }
+    }
+
     private DocumentListener docListener = new DocumentListener() {
         @Override
         public void insertUpdate(DocumentEvent e) {
@@ -60,156 +92,280 @@ public class TextInsertEventSource implements Closeable {
         public void changedUpdate(DocumentEvent e) {
             // These are attribute changes and don't interest us.
         }
-        
-        private FileObject cachedFile = null;
-        private Exercise cachedExercise = null;
-
-        private Exercise exerciseContainingFile(FileObject fo) {
-            if (cachedFile == null || !cachedFile.equals(fo)) {
-                cachedFile = fo;
-                ProjectMediator pm = ProjectMediator.getInstance();
-                TmcProjectInfo project = pm.tryGetProjectOwningFile(fo);
-                if (project != null) {
-                    cachedExercise = pm.tryGetExerciseForProject(project, CourseDb.getInstance());
+
+        private void handleEvent(DocumentEvent e) {
+            long startTime = System.nanoTime();
+            try {
+                final Edit edit = captureEdit(e);
+                if (edit != null) {
+                    pipeline.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            processEdit(edit);
+                        }
+                    });
                 }
+            } finally {
+                pipeline.recordListenerTime("TextInsertEventSource", startTime);
             }
-
-            return cachedExercise;
         }
 
-        private void handleEvent(DocumentEvent e) {
+        private Edit captureEdit(DocumentEvent e) {
             Document doc = e.getDocument();
 
             FileObject fo = NbEditorUtilities.getFileObject(doc);
             if (fo == null) {
                 log.log(Level.FINER, "Document has no associated file object");
-                return;
+                return null;
             }
 
-            Exercise ex = exerciseContainingFile(fo);
-            if (ex == null) {
-                log.log(Level.FINER, "Unable to determine exercise for document");
-                return;
-            }
-
-            createAndSendPatchEvent(e, fo, doc, ex);
-        }
-
-        private void createAndSendPatchEvent(DocumentEvent e, FileObject fo, Document doc, Exercise ex) {
-            List<Patch> patches;
-            
-            // if the document is not in cache, the patch will
-            // contain the full document
-            boolean patchContainsFullDocument = !documentCache.containsKey(doc);
-
+            // The document may change again before the pipeline gets to this,
+            // so the text must be read here.
+            boolean isInsert = e.getType() == EventType.INSERT;
             try {
-                // generatePatches will cache the current version for future
-                // patches; if the document was not in the cache previously, the patch will
-                // contain the full document content
-                patches = generatePatches(doc);
+                String inserted = null;
+                if (isInsert) {
+                    inserted = doc.getText(e.getOffset(), e.getLength());
+                }
+                String fullText = null;
+                if (!cachedDocuments.contains(doc)) {
+                    fullText = doc.getText(0, doc.getLength());
+                    cachedDocuments.add(doc);
+                }
+                return new Edit(doc, fo, isInsert, e.getOffset(), e.getLength(), doc.getLength(), inserted, fullText);
             } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Unable to generate patches from {0}.", fo.getName());
-                return;
+                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
+                return null;
             }
+        }
+    };
 
-            // Remove event is handled here as the getText-method can cause
-            // an error as the document state is the state after the event. As 
-            // the offsets are from the actual event, they may reference content 
-            // that is no longer in the current document.
-            if (e.getType().equals(EventType.REMOVE)) {
-                sendEvent(ex, "text_remove", generatePatchDescription(fo, patches, patchContainsFullDocument));
-                return;
-            }
+    private void processEdit(Edit edit) {
+        Exercise ex = ExerciseResolver.getInstance().tryGetExerciseForFile(edit.fo);
+        if (ex == null) {
+            log.log(Level.FINER, "Unable to determine exercise for document");
+            // Don't keep copies of documents that aren't exercise files.
+            // The document stays in cachedDocuments so that the listener
+            // doesn't copy it on each edit.
+            documentCache.remove(edit.doc);
+            return;
+        }
 
-            String text;
-            try {
-                text = doc.getText(e.getOffset(), e.getLength());
-            } catch (BadLocationException exp) {
-                log.log(Level.WARNING, "Document {0} event with bad location. ", e.getType());
-                return;
-            }
-            
-            if (isPasteEvent(text)) {
-                sendEvent(ex, "text_paste", generatePatchDescription(fo, patches, patchContainsFullDocument));
-            } else if (e.getType() == EventType.INSERT) {
-                sendEvent(ex, "text_insert", generatePatchDescription(fo, patches, patchContainsFullDocument));
-            }
+        // if the document is not in cache, the patch will
+        // contain the full document
+        boolean patchContainsFullDocument = !documentCache.contains(edit.doc);
+
+        // generatePatches will cache the current version for future
+        // patches; if the document was not in the cache previously, the patch will
+        // contain the full document content
+        List<Patch> patches = generatePatches(edit);
+        if (patches == null) {
+            resync(ex, edit);
+            return;
         }
 
-        private void sendEvent(Exercise ex, String eventType, String text) {
-            LoggableEvent event = new LoggableEvent(ex, eventType, text.getBytes(Charset.forName("UTF-8")));
-            receiver.receiveEvent(event);
-        }
-        
-        private String generatePatchDescription(FileObject fo, List<Patch> patches, boolean patchContainsFullDocument) {
-            String filePath = TmcFileUtils.tryGetPathRelativeToProject(fo);
-            if (filePath != null) {
-                return JsonMaker.create()
-                    .add("file", filePath)
-                    .add("patches", PATCH_GENERATOR.patch_toText(patches))
-                    .add("full_document", patchContainsFullDocument)
-                    .toString();
-            } else {
-                return "{}";
-            }
+        sendPatches(ex, edit, patches, patchContainsFullDocument);
+    }
+
+    private void sendPatches(Exercise ex, Edit edit, List<Patch> patches, boolean patchContainsFullDocument) {
+        if (!edit.isInsert) {
+            sendEdit(ex, edit.fo, false, patches, patchContainsFullDocument);
+        } else if (isPasteEvent(edit.inserted)) {
+            editCoalescer.sendSeparately(ex, "text_paste", generatePatchDescription(edit.fo, patches, patchContainsFullDocument));
+        } else {
+            sendEdit(ex, edit.fo, true, patches, patchContainsFullDocument);
         }
+    }
 
-        private boolean isPasteEvent(String text) throws HeadlessException {
-            if (text.length() <= 2 || isWhiteSpace(text)) {
-                // if a short text or whitespace is inserted,
-                // we skip checking for paste
-                return false;
+    /**
+     * Sends the edit as a patch containing the full document, read in the EDT,
+     * and caches that text for the following edits.
+     *
+     * <p>
+     * Called in the pipeline thread when the cached copy of the document
+     * can't be used for the edit.
+     */
+    private void resync(final Exercise ex, final Edit edit) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (cachedDocuments.contains(edit.doc)) {
+                    // An edit since then carries the full text already.
+                    return;
+                }
+                final String[] text = new String[1];
+                edit.doc.render(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            text[0] = edit.doc.getText(0, edit.doc.getLength());
+                        } catch (BadLocationException exp) {
+                            log.log(Level.WARNING, "Failed to read document for resync", exp);
+                        }
+                    }
+                });
+                if (text[0] == null) {
+                    return;
+                }
+                cachedDocuments.add(edit.doc);
+                pipeline.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        documentCache.put(edit.doc, text[0]);
+                        sendPatches(ex, edit, PATCH_GENERATOR.patch_make("", text[0]), true);
+                    }
+                });
             }
+        });
+    }
 
-            try {
-                String clipboardData = (String) Lookup.getDefault().
-                        lookup(ExClipboard.class).getData(DataFlavor.stringFlavor);
-                return text.equals(clipboardData);
-            } catch (Exception exp) {
-            }
+    private void sendEdit(Exercise ex, FileObject fo, boolean isInsert, List<Patch> patches, boolean patchContainsFullDocument) {
+        String filePath = TmcFileUtils.tryGetPathRelativeToProject(fo);
+        if (filePath != null) {
+            editCoalescer.addEdit(ex, filePath, isInsert, PATCH_GENERATOR.patch_toText(patches), patchContainsFullDocument);
+        } else {
+            editCoalescer.sendSeparately(ex, isInsert ? "text_insert" : "text_remove", "{}");
+        }
+    }
+    
+    private String generatePatchDescription(FileObject fo, List<Patch> patches, boolean patchContainsFullDocument) {
+        String filePath = TmcFileUtils.tryGetPathRelativeToProject(fo);
+        if (filePath != null) {
+            return JsonMaker.create()
+                .add("file", filePath)
+                .add("patches", PATCH_GENERATOR.patch_toText(patches))
+                .add("full_document", patchContainsFullDocument)
+                .toString();
+        } else {
+            return "{}";
+        }
+    }
 
+    private boolean isPasteEvent(String text) throws HeadlessException {
+        if (text.length() <= 2 || isWhiteSpace(text)) {
+            // if a short text or whitespace is inserted,
+            // we skip checking for paste
             return false;
         }
 
-        private boolean isWhiteSpace(String text) {
-            // If an insert is just whitespace, it's probably an autoindent
+        try {
+            String clipboardData = (String) Lookup.getDefault().
+                    lookup(ExClipboard.class).getData(DataFlavor.stringFlavor);
+            return text.equals(clipboardData);
+        } catch (Exception exp) {
+        }
 
-            for (int i = 0; i < text.length(); ++i) {
-                if (!Character.isWhitespace(text.charAt(i))) {
-                    return false;
-                }
+        return false;
+    }
+
+    private boolean isWhiteSpace(String text) {
+        // If an insert is just whitespace, it's probably an autoindent
+
+        for (int i = 0; i < text.length(); ++i) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
             }
+        }
+
+        return true;
+    }
 
-            return true;
+    /**
+     * Builds the patch for the given edit from the cached copy of the document,
+     * and applies the edit to the cached copy.
+     *
+     * <p>
+     * If the listener sent the full document, it is diffed against the cached
+     * copy, or against nothing if there is none. If the cached copy has gone out
+     * of sync, it is dropped and null is returned. The caller must then
+     * {@link #resync} the document.
+     */
+    private List<Patch> generatePatches(Edit edit) {
+        CharSequence cached = documentCache.get(edit.doc);
+
+        if (edit.fullText != null) {
+            String previous = cached != null ? cached.toString() : "";
+            documentCache.put(edit.doc, edit.fullText);
+            return PATCH_GENERATOR.patch_make(previous, edit.fullText);
         }
 
-        // currently, if a document is not existing, the patch will
-        // contain the full file
-        private List<Patch> generatePatches(Document doc) throws BadLocationException {
-            String previous = "";
-            if (documentCache.containsKey(doc)) {
-                previous = documentCache.get(doc);
-            }
+        if (cached == null || !isInSync(cached, edit)) {
+            log.log(Level.FINE, "Cached document out of sync, resending it in full");
+            documentCache.remove(edit.doc);
+            cachedDocuments.remove(edit.doc);
+            return null;
+        }
 
-            documentCache.put(doc, doc.getText(0, doc.getLength()));
-            String current = documentCache.get(doc);
+        if (edit.isInsert) {
+            List<Patch> patches = EditPatches.forInsert(PATCH_GENERATOR, cached, edit.offset, edit.inserted);
+            documentCache.insert(edit.doc, edit.offset, edit.inserted);
+            return patches;
+        } else {
+            List<Patch> patches = EditPatches.forRemove(PATCH_GENERATOR, cached, edit.offset, edit.length);
+            documentCache.delete(edit.doc, edit.offset, edit.length);
+            return patches;
+        }
+    }
 
-            return PATCH_GENERATOR.patch_make(previous, current);
+    private boolean isInSync(CharSequence cached, Edit edit) {
+        if (edit.isInsert) {
+            return edit.offset <= cached.length() && cached.length() + edit.length == edit.docLengthAfter;
+        } else {
+            return edit.offset + edit.length <= cached.length() && cached.length() - edit.length == edit.docLengthAfter;
         }
-    };
+    }
     
     private PropertyChangeListener propListener = new PropertyChangeListener() {
         @Override
         public void propertyChange(PropertyChangeEvent evt) {
+            if (EditorRegistry.COMPONENT_REMOVED_PROPERTY.equals(evt.getPropertyName())
+                    && evt.getOldValue() instanceof JTextComponent) {
+                forgetDocument(((JTextComponent) evt.getOldValue()).getDocument());
+            }
+            JTextComponent focused = EditorRegistry.lastFocusedComponent();
+            if (focused != null && currentComponent != null && focused.getDocument() == currentComponent.getDocument()) {
+                // Still listening to the same document, so no edit has been missed.
+                currentComponent = focused;
+                return;
+            }
             deregister();
             register();
         }
     };
 
-    public TextInsertEventSource(EventReceiver receiver) {
-        this.receiver = receiver;
+    private void forgetDocument(final Document doc) {
+        cachedDocuments.remove(doc);
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                documentCache.remove(doc);
+            }
+        });
+    }
+
+    /**
+     * Returns roughly how many bytes the copies of edited documents take.
+     */
+    public long getDocumentCacheBytes() {
+        return documentCache.getByteFootprint();
+    }
+
+    public int getCachedDocumentCount() {
+        return documentCache.size();
+    }
+
+    public TextInsertEventSource(EventReceiver receiver, EventPipeline pipeline) {
+        this.pipeline = pipeline;
+        this.editCoalescer = new EditCoalescer(receiver);
         this.currentComponent = null;
-        this.documentCache = new HashMap<Document, String>();
+        this.cachedDocuments = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Document, Boolean>()));
+        this.documentCache = new DocumentTextCache<Document>(MAX_DOCUMENT_CACHE_BYTES, new DocumentTextCache.EvictionListener<Document>() {
+            @Override
+            public void evicted(Document doc) {
+                // The listener must send the full text with the next edit.
+                cachedDocuments.remove(doc);
+            }
+        });
         EditorRegistry.addPropertyChangeListener(propListener);
     }
 
@@ -222,7 +378,12 @@ public class TextInsertEventSource implements Closeable {
 
     private void deregister() {
         if (currentComponent != null) {
-            currentComponent.getDocument().removeDocumentListener(docListener);
+            Document doc = currentComponent.getDocument();
+            doc.removeDocumentListener(docListener);
+            // Edits made while the document is not listened to (e.g. by a refactoring)
+            // aren't seen, so the next edit must send the full text to be diffed
+            // against the cached copy.
+            cachedDocuments.remove(doc);
             currentComponent = null;
         }
     }
@@ -231,5 +392,12 @@ public class TextInsertEventSource implements Closeable {
     public void close() {
         deregister();
         EditorRegistry.removePropertyChangeListener(propListener);
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                editCoalescer.close();
+                documentCache.clear();
+            }
+        });
     }
 }
@@ -6,8 +6,7 @@ import fi.helsinki.cs.tmc.core.domain.Exercise;
 import com.google.common.base.CaseFormat;
 
 import fi.helsinki.cs.tmc.model.CourseDb;
-import fi.helsinki.cs.tmc.model.ProjectMediator;
-import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.ExerciseResolver;
 import fi.helsinki.cs.tmc.snapshots.EventReceiver;
 import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
 import fi.helsinki.cs.tmc.core.utilities.JsonMaker;
@@ -37,14 +36,14 @@ public final class WindowStatechangesEventSource implements PropertyChangeListen
 
     private static final Logger log = Logger.getLogger(WindowStatechangesEventSource.class.getName());
 
-    private final ProjectMediator projects;
     private final CourseDb courseDb;
     private final EventReceiver receiver;
+    private final EventPipeline pipeline;
 
-    public WindowStatechangesEventSource(EventReceiver receiver) {
-        this.projects = ProjectMediator.getInstance();
+    public WindowStatechangesEventSource(EventReceiver receiver, EventPipeline pipeline) {
         this.courseDb = CourseDb.getInstance();
         this.receiver = receiver;
+        this.pipeline = pipeline;
         startListening();
     }
 
@@ -58,49 +57,80 @@ public final class WindowStatechangesEventSource implements PropertyChangeListen
     /**
      * Receives and logs sub window change events. Such as opening and closing a new file and
      * changing between open files.
+     *
+     * <p>
+     * Only the changed file and the values are read here, as they must be read in the EDT.
+     * The event is made in the {@link EventPipeline}.
      */
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
+        long startTime = System.nanoTime();
         try {
-            FileObject changedFile = getChangedFile();
-
-            Exercise exercise = getExercise(changedFile);
-            String eventName = underscorify(evt.getPropertyName());
-
-            LoggableEvent event;
-            if (exercise != null) {
-                log.log(Level.FINER, "Exercise: {0}", exercise);
-                String filePath = TmcFileUtils.tryGetPathRelativeToProject(changedFile);
-                String data = JsonMaker.create()
-                        .add("new_value", toStringWithObjects(evt.getNewValue()))
-                        .add("old_value", toStringWithObjects(evt.getOldValue()))
-                        .add("file", toStringWithObjects(filePath))
-                        .toString();
-
-                event = new LoggableEvent(exercise, eventName, data.getBytes(Charset.forName("UTF-8")));
-            } else {
-                String data = JsonMaker.create()
-                        .add("new_value", toStringWithObjects(evt.getNewValue()))
-                        .add("old_value", toStringWithObjects(evt.getOldValue()))
-                        .add("non_tmc_project", true)
-                        .toString();
-                event = new LoggableEvent(eventName, data.getBytes(Charset.forName("UTF-8")));
-            }
-
-            receiver.receiveEvent(event);
+            final FileObject changedFile = getChangedFile();
+            final String eventName = underscorify(evt.getPropertyName());
+            final String newValue = toStringWithObjects(evt.getNewValue());
+            final String oldValue = toStringWithObjects(evt.getOldValue());
+
+            pipeline.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sendPropertyChange(changedFile, eventName, newValue, oldValue);
+                }
+            });
         } catch (Exception e) {
             log.log(Level.INFO, "Error in window event listener: {0}", e);
+        } finally {
+            pipeline.recordListenerTime("WindowStatechangesEventSource", startTime);
         }
     }
 
+    private void sendPropertyChange(FileObject changedFile, String eventName, String newValue, String oldValue) {
+        Exercise exercise = getExercise(changedFile);
+
+        LoggableEvent event;
+        if (exercise != null) {
+            log.log(Level.FINER, "Exercise: {0}", exercise);
+            String filePath = TmcFileUtils.tryGetPathRelativeToProject(changedFile);
+            String data = JsonMaker.create()
+                    .add("new_value", newValue)
+                    .add("old_value", oldValue)
+                    .add("file", toStringWithObjects(filePath))
+                    .toString();
+
+            event = new LoggableEvent(exercise, eventName, data.getBytes(Charset.forName("UTF-8")));
+        } else {
+            String data = JsonMaker.create()
+                    .add("new_value", newValue)
+                    .add("old_value", oldValue)
+                    .add("non_tmc_project", true)
+                    .toString();
+            event = new LoggableEvent(eventName, data.getBytes(Charset.forName("UTF-8")));
+        }
+
+        receiver.receiveEvent(event);
+    }
+
     /**
      * Logs window events.
      */
-    private void reactToEvent(String action, WindowEvent event) {
+    private void reactToEvent(final String action, WindowEvent event) {
+        long startTime = System.nanoTime();
+        final int newState = event.getNewState();
+        final int oldState = event.getOldState();
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                sendWindowEvent(action, newState, oldState);
+            }
+        });
+        pipeline.recordListenerTime("WindowStatechangesEventSource", startTime);
+    }
+
+    private void sendWindowEvent(String action, int newState, int oldState) {
         try {
             String data = JsonMaker.create()
-                    .add("new_state", event.getNewState())
-                    .add("old_state", event.getOldState())
+                    .add("new_state", newState)
+                    .add("old_state", oldState)
                     .toString();
             if (courseDb != null) {
                 Course course = courseDb.getCurrentCourse();
@@ -158,12 +188,7 @@ public final class WindowStatechangesEventSource implements PropertyChangeListen
         if (obj == null) {
             return null;
         }
-        ProjectMediator pm = ProjectMediator.getInstance();
-        TmcProjectInfo project = pm.tryGetProjectOwningFile(obj);
-        if (project == null) {
-            return null;
-        }
-        return pm.tryGetExerciseForProject(project, courseDb);
+        return ExerciseResolver.getInstance().tryGetExerciseForFile(obj);
     }
 
     private String toStringWithObjects(Object object) {
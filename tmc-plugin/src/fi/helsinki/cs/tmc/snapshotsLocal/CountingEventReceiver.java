@@ -0,0 +1,76 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the events and their data bytes by event type on their way to the
+ * next receiver. Thread-safe.
+ */
+class CountingEventReceiver implements EventReceiver {
+    private final EventReceiver nextReceiver;
+    private final ConcurrentHashMap<String, AtomicLong> counts;
+    private final ConcurrentHashMap<String, AtomicLong> bytes;
+    private final long startTime;
+
+    public CountingEventReceiver(EventReceiver nextReceiver) {
+        this.nextReceiver = nextReceiver;
+        this.counts = new ConcurrentHashMap<String, AtomicLong>();
+        this.bytes = new ConcurrentHashMap<String, AtomicLong>();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void receiveEvent(LoggableEvent event) {
+        String type = event.getEventType();
+        counter(counts, type).incrementAndGet();
+        byte[] data = event.getData();
+        if (data != null) {
+            counter(bytes, type).addAndGet(data.length);
+        }
+        nextReceiver.receiveEvent(event);
+    }
+
+    public Map<String, Long> getCounts() {
+        return snapshot(counts);
+    }
+
+    public Map<String, Long> getBytes() {
+        return snapshot(bytes);
+    }
+
+    /**
+     * Returns when counting started, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public void close() throws IOException {
+        nextReceiver.close();
+    }
+
+    private static AtomicLong counter(ConcurrentHashMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            counters.putIfAbsent(key, new AtomicLong());
+            counter = counters.get(key);
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentHashMap<String, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes a batch of events into one gzipped blob.
+ *
+ * <p>
+ * Events in a batch mostly share their course, exercise, event type and
+ * metadata (like the host id). Each distinct value of a field other than
+ * {@code data} is stored once in a dictionary, and the events refer to it
+ * by index. The result is then gzipped as a whole, which also catches what
+ * the dictionary doesn't.
+ */
+class EventBatchCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int VERSION = 1;
+
+    // Unique per event, so not worth a dictionary entry.
+    private static final String DATA_FIELD = "data";
+
+    private final Gson gson;
+
+    public EventBatchCodec() {
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
+                .create();
+    }
+
+    public byte[] encode(List<LoggableEvent> events) throws IOException {
+        JsonArray dictionary = new JsonArray();
+        Map<JsonElement, Integer> indices = new HashMap<JsonElement, Integer>();
+        JsonArray encodedEvents = new JsonArray();
+
+        for (LoggableEvent event : events) {
+            JsonObject fields = new JsonObject();
+            JsonObject refs = new JsonObject();
+            for (Map.Entry<String, JsonElement> field : gson.toJsonTree(event).getAsJsonObject().entrySet()) {
+                JsonElement value = field.getValue();
+                if (field.getKey().equals(DATA_FIELD) || isNumber(value)) {
+                    fields.add(field.getKey(), value);
+                } else {
+                    Integer index = indices.get(value);
+                    if (index == null) {
+                        index = indices.size();
+                        indices.put(value, index);
+                        dictionary.add(value);
+                    }
+                    refs.addProperty(field.getKey(), index);
+                }
+            }
+            JsonObject encoded = new JsonObject();
+            encoded.add("refs", refs);
+            encoded.add("fields", fields);
+            encodedEvents.add(encoded);
+        }
+
+        JsonObject batch = new JsonObject();
+        batch.addProperty("version", VERSION);
+        batch.add("dictionary", dictionary);
+        batch.add("events", encodedEvents);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), UTF8);
+        try {
+            gson.toJson(batch, writer);
+        } finally {
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    public List<LoggableEvent> decode(byte[] encoded) throws IOException {
+        JsonObject batch;
+        Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(encoded)), UTF8);
+        try {
+            batch = new JsonParser().parse(reader).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Malformed event batch", e);
+        } finally {
+            reader.close();
+        }
+
+        if (!batch.has("version") || batch.get("version").getAsInt() != VERSION) {
+            throw new IOException("Unsupported event batch version");
+        }
+
+        try {
+            JsonArray dictionary = batch.getAsJsonArray("dictionary");
+            List<LoggableEvent> result = new ArrayList<LoggableEvent>();
+            for (JsonElement element : batch.getAsJsonArray("events")) {
+                JsonObject encodedEvent = element.getAsJsonObject();
+                JsonObject event = new JsonObject();
+                for (Map.Entry<String, JsonElement> ref : encodedEvent.getAsJsonObject("refs").entrySet()) {
+                    event.add(ref.getKey(), dictionary.get(ref.getValue().getAsInt()));
+                }
+                for (Map.Entry<String, JsonElement> field : encodedEvent.getAsJsonObject("fields").entrySet()) {
+                    event.add(field.getKey(), field.getValue());
+                }
+                result.add(gson.fromJson(event, LoggableEvent.class));
+            }
+            return result;
+        } catch (JsonParseException | IllegalStateException | ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed event batch", e);
+        }
+    }
+
+    private static boolean isNumber(JsonElement value) {
+        return value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber();
+    }
+}
@@ -0,0 +1,387 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.utilities.TmcFileUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only queue of records on disk.
+ *
+ * <p>
+ * Records are appended to segment files, each record prefixed with its length
+ * and CRC32. A separate position file tells how far the records have been
+ * taken. A record that fails its check, like a half-written one after a crash,
+ * ends its segment. Segments that have been fully taken are deleted. If the
+ * segments grow beyond the size limit, the oldest are deleted even if their
+ * records haven't been taken.
+ *
+ * <p>
+ * Writes aren't forced to disk one by one, so a killed IDE loses nothing but
+ * a crashed operating system may lose the latest records.
+ *
+ * <p>
+ * Thread-safe.
+ */
+class EventSpool implements Closeable {
+    private static final Logger log = Logger.getLogger(EventSpool.class.getName());
+
+    /*package*/ static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    /*package*/ static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String POSITION_FILE = "position";
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final long maxSize;
+
+    // Segment sizes by segment number. The last one is written to.
+    private final TreeMap<Long, Long> segments;
+    private FileChannel writeChannel;
+    private FileChannel readChannel; // of readChannelSegment, opened on demand
+    private long readChannelSegment;
+
+    // The next record to take.
+    private long readSegment;
+    private long readOffset;
+
+    private long droppedRecords;
+
+    public EventSpool(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /*package*/ EventSpool(Path dir, long segmentSize, long maxSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.segments = new TreeMap<Long, Long>();
+        Files.createDirectories(dir);
+        open();
+    }
+
+    /**
+     * Appends a record.
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if (record.length > MAX_RECORD_SIZE) {
+            throw new IOException("Record too large: " + record.length + " bytes");
+        }
+        long current = segments.lastKey();
+        if (segments.get(current) > 0 && segments.get(current) + HEADER_SIZE + record.length > segmentSize) {
+            startSegment(current + 1);
+            current = segments.lastKey();
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buf.putInt(record.length);
+        buf.putInt((int) crc(record));
+        buf.put(record);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            writeChannel.write(buf);
+        }
+        segments.put(current, segments.get(current) + HEADER_SIZE + record.length);
+
+        enforceMaxSize();
+    }
+
+    /**
+     * Returns up to {@code max} records from the head of the queue without taking them.
+     */
+    public synchronized List<byte[]> peek(int max) throws IOException {
+        List<byte[]> result = new ArrayList<byte[]>();
+        long segment = readSegment;
+        long offset = readOffset;
+        while (result.size() < max && segments.containsKey(segment)) {
+            byte[] record = offset < segments.get(segment) ? readRecord(segment, offset) : null;
+            if (record != null) {
+                result.add(record);
+                offset += HEADER_SIZE + record.length;
+            } else if (segment < segments.lastKey()) {
+                segment = segments.higherKey(segment);
+                offset = 0;
+            } else {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes the given number of records from the head of the queue,
+     * as returned by {@link #peek}.
+     */
+    public synchronized void take(int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            byte[] record = null;
+            while (segments.containsKey(readSegment)) {
+                record = readOffset < segments.get(readSegment) ? readRecord(readSegment, readOffset) : null;
+                if (record != null || readSegment == segments.lastKey()) {
+                    break;
+                }
+                readSegment = segments.higherKey(readSegment);
+                readOffset = 0;
+            }
+            if (record == null) {
+                break;
+            }
+            readOffset += HEADER_SIZE + record.length;
+        }
+        deleteTakenSegments();
+        savePosition();
+    }
+
+    /**
+     * Returns the total size of the segment files.
+     */
+    public synchronized long getSize() {
+        long total = 0;
+        for (long size : segments.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of records lost to the size limit.
+     */
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeReadChannel();
+        if (writeChannel != null) {
+            writeChannel.force(false);
+            writeChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX);
+        try {
+            for (Path file : stream) {
+                Long number = parseSegmentNumber(file);
+                if (number != null) {
+                    segments.put(number, validLength(number));
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        loadPosition();
+
+        // Never append after a possibly broken tail.
+        long next = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        startSegment(Math.max(next, readSegment));
+        if (!segments.containsKey(readSegment)) {
+            readSegment = segments.firstKey();
+            readOffset = 0;
+        }
+        deleteTakenSegments();
+    }
+
+    private void startSegment(long number) throws IOException {
+        if (writeChannel != null) {
+            writeChannel.force(false);
+            writeChannel.close();
+        }
+        writeChannel = FileChannel.open(segmentFile(number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(number, 0L);
+    }
+
+    /**
+     * Returns the length of the segment up to its first broken record.
+     */
+    private long validLength(long segment) throws IOException {
+        FileChannel ch = FileChannel.open(segmentFile(segment), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            long offset = 0;
+            while (offset < size) {
+                byte[] record = readRecord(ch, offset, size);
+                if (record == null) {
+                    log.log(Level.WARNING, "Spool segment {0} is broken at {1}", new Object[] {segment, offset});
+                    break;
+                }
+                offset += HEADER_SIZE + record.length;
+            }
+            return offset;
+        } finally {
+            ch.close();
+        }
+    }
+
+    private byte[] readRecord(long segment, long offset) throws IOException {
+        return readRecord(readChannel(segment), offset, segments.get(segment));
+    }
+
+    /**
+     * Returns a channel for reading the segment, reusing the previous one if
+     * it's for the same segment. Records are mostly read in order, so there's
+     * one open read channel at a time.
+     */
+    private FileChannel readChannel(long segment) throws IOException {
+        if (readChannel == null || readChannelSegment != segment) {
+            closeReadChannel();
+            readChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.READ);
+            readChannelSegment = segment;
+        }
+        return readChannel;
+    }
+
+    private void closeReadChannel() throws IOException {
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+        }
+    }
+
+    private void deleteSegment(long segment) throws IOException {
+        if (readChannel != null && readChannelSegment == segment) {
+            closeReadChannel();
+        }
+        Files.deleteIfExists(segmentFile(segment));
+        segments.remove(segment);
+    }
+
+    /**
+     * Reads the record at the offset, or returns null if it's incomplete or corrupt.
+     */
+    private static byte[] readRecord(FileChannel ch, long offset, long limit) throws IOException {
+        if (offset + HEADER_SIZE > limit) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(ch, header, offset)) {
+            return null;
+        }
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 0 || length > MAX_RECORD_SIZE || offset + HEADER_SIZE + length > limit) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        if (!readFully(ch, data, offset + HEADER_SIZE)) {
+            return null;
+        }
+        byte[] record = data.array();
+        if ((int) crc(record) != crc) {
+            return null;
+        }
+        return record;
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enforceMaxSize() throws IOException {
+        while (getSize() > maxSize && segments.size() > 1) {
+            long oldest = segments.firstKey();
+            long dropped = countRecords(oldest, oldest == readSegment ? readOffset : 0);
+            droppedRecords += dropped;
+            log.log(Level.WARNING, "Event spool full, dropping {0} oldest events", dropped);
+            deleteSegment(oldest);
+            if (readSegment <= oldest) {
+                readSegment = segments.firstKey();
+                readOffset = 0;
+                savePosition();
+            }
+        }
+    }
+
+    private long countRecords(long segment, long fromOffset) throws IOException {
+        long count = 0;
+        long offset = fromOffset;
+        byte[] record;
+        while (offset < segments.get(segment) && (record = readRecord(segment, offset)) != null) {
+            offset += HEADER_SIZE + record.length;
+            count++;
+        }
+        return count;
+    }
+
+    private void deleteTakenSegments() throws IOException {
+        while (segments.firstKey() < readSegment) {
+            long oldest = segments.firstKey();
+            deleteSegment(oldest);
+        }
+    }
+
+    private void loadPosition() {
+        Path file = dir.resolve(POSITION_FILE);
+        readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+        readOffset = 0;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            String[] parts = new String(Files.readAllBytes(file), Charset.forName("UTF-8")).trim().split(" ");
+            long segment = Long.parseLong(parts[0]);
+            long offset = Long.parseLong(parts[1]);
+            if (segments.containsKey(segment) && offset <= segments.get(segment)) {
+                readSegment = segment;
+                readOffset = offset;
+            } else if (!segments.isEmpty() && segment > segments.lastKey()) {
+                readSegment = segment;
+                readOffset = 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Failed to read event spool position, starting from the oldest event", e);
+        }
+    }
+
+    private void savePosition() throws IOException {
+        String position = readSegment + " " + readOffset;
+        TmcFileUtils.writeAtomically(dir.resolve(POSITION_FILE), position.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private Path segmentFile(long number) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static Long parseSegmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
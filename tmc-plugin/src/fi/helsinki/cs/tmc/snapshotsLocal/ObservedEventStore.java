@@ -0,0 +1,36 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.EventStore;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+
+import java.io.IOException;
+
+/**
+ * An {@link EventStore} that tells how many events the send buffer held
+ * each time it saved them.
+ *
+ * <p>
+ * The send buffer doesn't otherwise tell how full it is. It saves its events
+ * from time to time and after sending, so this keeps track of it closely enough
+ * to decide whether to give it more.
+ */
+class ObservedEventStore extends EventStore {
+    public interface Listener {
+        void saved(int eventCount);
+    }
+
+    private volatile Listener listener;
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void save(LoggableEvent[] events) throws IOException {
+        super.save(events);
+        Listener l = listener;
+        if (l != null) {
+            l.saved(events.length);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.TokenBucket;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drops events that come faster than a token bucket per event type and
+ * per exercise allows.
+ *
+ * <p>
+ * This protects the rest of the pipeline from e.g. a build loop or a file
+ * generator in an exercise. Code snapshots pass through, as their source
+ * already delays and merges them per project.
+ */
+class RateLimitingEventReceiver implements EventReceiver {
+    private static final Logger log = Logger.getLogger(RateLimitingEventReceiver.class.getName());
+
+    /*package*/ static final int TYPE_BURST = 100;
+    /*package*/ static final int TYPE_RATE = 10; // per second
+    /*package*/ static final int EXERCISE_BURST = 200;
+    /*package*/ static final int EXERCISE_RATE = 20; // per second
+
+    private static final String CODE_SNAPSHOT = "code_snapshot";
+
+    private final EventReceiver nextReceiver;
+    private final ConcurrentHashMap<String, TokenBucket> typeBuckets;
+    private final ConcurrentHashMap<String, TokenBucket> exerciseBuckets;
+    private final ConcurrentHashMap<String, AtomicLong> dropped; // by event type
+
+    public RateLimitingEventReceiver(EventReceiver nextReceiver) {
+        this.nextReceiver = nextReceiver;
+        this.typeBuckets = new ConcurrentHashMap<String, TokenBucket>();
+        this.exerciseBuckets = new ConcurrentHashMap<String, TokenBucket>();
+        this.dropped = new ConcurrentHashMap<String, AtomicLong>();
+    }
+
+    @Override
+    public void receiveEvent(LoggableEvent event) {
+        String type = event.getEventType();
+        if (CODE_SNAPSHOT.equals(type)) {
+            nextReceiver.receiveEvent(event);
+            return;
+        }
+
+        String exercise = event.getCourseName() + "/" + event.getExerciseName();
+        // Both buckets must allow it. A drop by the first one doesn't use up the second.
+        if (bucket(typeBuckets, type, TYPE_BURST, TYPE_RATE).tryTake()
+                && bucket(exerciseBuckets, exercise, EXERCISE_BURST, EXERCISE_RATE).tryTake()) {
+            nextReceiver.receiveEvent(event);
+        } else {
+            countDrop(type);
+        }
+    }
+
+    /**
+     * Returns the number of dropped events by event type.
+     */
+    public Map<String, Long> getDroppedCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : dropped.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Map.Entry<String, Long> entry : getDroppedCounts().entrySet()) {
+            log.log(Level.INFO, "Dropped {0} {1} events for coming too fast", new Object[] {entry.getValue(), entry.getKey()});
+        }
+        nextReceiver.close();
+    }
+
+    private void countDrop(String type) {
+        AtomicLong count = dropped.get(type);
+        if (count == null) {
+            dropped.putIfAbsent(type, new AtomicLong());
+            count = dropped.get(type);
+        }
+        if (count.incrementAndGet() == 1) {
+            log.log(Level.INFO, "Too many {0} events, dropping some", type);
+        }
+    }
+
+    private static TokenBucket bucket(ConcurrentHashMap<String, TokenBucket> buckets, String key, int burst, int rate) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            buckets.putIfAbsent(key, new TokenBucket(burst, rate));
+            bucket = buckets.get(key);
+        }
+        return bucket;
+    }
+}
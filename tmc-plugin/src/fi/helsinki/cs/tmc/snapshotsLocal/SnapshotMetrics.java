@@ -0,0 +1,156 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.eventsources.EventPipeline;
+import fi.helsinki.cs.tmc.snapshots.eventsources.SourceSnapshotEventSource;
+import fi.helsinki.cs.tmc.snapshots.eventsources.TextInsertEventSource;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the statistics of the snapshot subsystem's parts in one place.
+ *
+ * <p>
+ * Registered in the platform MBean server as {@link #OBJECT_NAME} while
+ * snapshots are on, and shown in the snapshot diagnostics dialog. The number
+ * of events in the send buffer is an estimate, as of the buffer's latest save.
+ */
+public class SnapshotMetrics implements SnapshotMetricsMXBean {
+    public static final String OBJECT_NAME = "fi.helsinki.cs.tmc:type=SnapshotMetrics";
+
+    private final CountingEventReceiver counter;
+    private final RateLimitingEventReceiver rateLimiter;
+    private final SpoolingEventReceiver spooler; // null if spooling failed to start
+    private final EventPipeline eventPipeline;
+    private final SourceSnapshotEventSource sourceSnapshotSource;
+    private final TextInsertEventSource textInsertEventSource;
+
+    /*package*/ SnapshotMetrics(
+            CountingEventReceiver counter,
+            RateLimitingEventReceiver rateLimiter,
+            SpoolingEventReceiver spooler,
+            EventPipeline eventPipeline,
+            SourceSnapshotEventSource sourceSnapshotSource,
+            TextInsertEventSource textInsertEventSource) {
+        this.counter = counter;
+        this.rateLimiter = rateLimiter;
+        this.spooler = spooler;
+        this.eventPipeline = eventPipeline;
+        this.sourceSnapshotSource = sourceSnapshotSource;
+        this.textInsertEventSource = textInsertEventSource;
+    }
+
+    @Override
+    public Map<String, Long> getEventCounts() {
+        return counter.getCounts();
+    }
+
+    @Override
+    public Map<String, Long> getEventBytes() {
+        return counter.getBytes();
+    }
+
+    @Override
+    public Map<String, Double> getEventsPerSecond() {
+        double seconds = Math.max(1, System.currentTimeMillis() - counter.getStartTime()) / 1000.0;
+        Map<String, Double> result = new TreeMap<String, Double>();
+        for (Map.Entry<String, Long> entry : counter.getCounts().entrySet()) {
+            result.put(entry.getKey(), entry.getValue() / seconds);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getDroppedEvents() {
+        return rateLimiter.getDroppedCounts();
+    }
+
+    @Override
+    public long getMergedSnapshots() {
+        return sourceSnapshotSource.getMergedSnapshotCount();
+    }
+
+    @Override
+    public Map<String, Long> getZipTimes() {
+        return sourceSnapshotSource.getZipTimes().getCounts();
+    }
+
+    @Override
+    public Map<String, Long> getListenerAverageMicros() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, EventPipeline.ListenerTime> entry : eventPipeline.getListenerTimes().entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMicros(entry.getValue().getAverageNanos()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getListenerMaxMicros() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, EventPipeline.ListenerTime> entry : eventPipeline.getListenerTimes().entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMicros(entry.getValue().getMaxNanos()));
+        }
+        return result;
+    }
+
+    @Override
+    public int getUnspooledEvents() {
+        return spooler != null ? spooler.getPendingCount() : 0;
+    }
+
+    @Override
+    public int getSendBufferEvents() {
+        return spooler != null ? spooler.getBufferedEventCount() : 0;
+    }
+
+    @Override
+    public long getSpoolBytes() {
+        return spooler != null ? spooler.getSpoolBytes() : 0;
+    }
+
+    @Override
+    public long getDroppedSpoolBatches() {
+        return spooler != null ? spooler.getDroppedBatches() : 0;
+    }
+
+    @Override
+    public long getDocumentCacheBytes() {
+        return textInsertEventSource != null ? textInsertEventSource.getDocumentCacheBytes() : 0;
+    }
+
+    /**
+     * Returns the statistics as plain text, for logs and the diagnostics dialog.
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        appendSection(sb, "Events", getEventCounts());
+        appendSection(sb, "Event data bytes", getEventBytes());
+        appendSection(sb, "Events per second", getEventsPerSecond());
+        appendSection(sb, "Events dropped for coming too fast", getDroppedEvents());
+        sb.append("Code snapshots merged into later ones: ").append(getMergedSnapshots()).append('\n');
+        appendSection(sb, "Snapshot zip times", getZipTimes());
+        appendSection(sb, "Average time in EDT listeners (us)", getListenerAverageMicros());
+        appendSection(sb, "Maximum time in EDT listeners (us)", getListenerMaxMicros());
+        sb.append("Events waiting to be spooled: ").append(getUnspooledEvents()).append('\n');
+        sb.append("Events in the send buffer: ").append(getSendBufferEvents()).append('\n');
+        sb.append("Spool size: ").append(getSpoolBytes()).append(" bytes\n");
+        sb.append("Spool batches dropped when full: ").append(getDroppedSpoolBatches()).append('\n');
+        sb.append("Document cache size: ").append(getDocumentCacheBytes()).append(" bytes\n");
+        return sb.toString();
+    }
+
+    private static void appendSection(StringBuilder sb, String title, Map<String, ?> values) {
+        sb.append(title).append(':');
+        if (values.isEmpty()) {
+            sb.append(" none\n");
+            return;
+        }
+        sb.append('\n');
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            String text = value instanceof Double ? String.format("%.3f", (Double) value) : String.valueOf(value);
+            sb.append("  ").append(entry.getKey()).append(": ").append(text).append('\n');
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import java.util.Map;
+
+/**
+ * How much work the snapshot subsystem has done in this session.
+ */
+public interface SnapshotMetricsMXBean {
+    Map<String, Long> getEventCounts();
+
+    Map<String, Long> getEventBytes();
+
+    Map<String, Double> getEventsPerSecond();
+
+    Map<String, Long> getDroppedEvents();
+
+    long getMergedSnapshots();
+
+    Map<String, Long> getZipTimes();
+
+    Map<String, Long> getListenerAverageMicros();
+
+    Map<String, Long> getListenerMaxMicros();
+
+    int getUnspooledEvents();
+
+    int getSendBufferEvents();
+
+    long getSpoolBytes();
+
+    long getDroppedSpoolBatches();
+
+    long getDocumentCacheBytes();
+}
@@ -2,13 +2,13 @@ package fi.helsinki.cs.tmc.snapshotsLocal;
 
 import fi.helsinki.cs.tmc.core.holders.TmcSettingsHolder;
 import fi.helsinki.cs.tmc.coreimpl.TmcCoreSettingsImpl;
+import fi.helsinki.cs.tmc.snapshots.eventsources.EventPipeline;
 import fi.helsinki.cs.tmc.snapshots.eventsources.WindowStatechangesEventSource;
 import fi.helsinki.cs.tmc.core.events.TmcEvent;
 import fi.helsinki.cs.tmc.core.events.TmcEventBus;
 import fi.helsinki.cs.tmc.snapshots.EventDeduplicater;
 import fi.helsinki.cs.tmc.snapshots.EventReceiver;
 import fi.helsinki.cs.tmc.snapshots.EventSendBuffer;
-import fi.helsinki.cs.tmc.snapshots.EventStore;
 import fi.helsinki.cs.tmc.snapshots.HostInformationGenerator;
 import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
 import fi.helsinki.cs.tmc.snapshots.eventsources.TextInsertEventSource;
@@ -19,12 +19,18 @@ import fi.helsinki.cs.tmc.snapshots.eventsources.TmcEventBusEventSource;
 import fi.helsinki.cs.tmc.utilities.TmcSwingUtilities;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class SnapshotsFacade {
 
     private static final Logger log = Logger.getLogger(SnapshotsFacade.class.getName());
 
+    private static final String SPOOL_DIR = "snapshot-spool";
+
     private static SnapshotsFacade instance;
 
     public static void start() {
@@ -52,27 +58,55 @@ public class SnapshotsFacade {
      * We don't want to delay closing NetBeans by then sending snapshots...
      */
     public static void sendNow() {
-        TmcSwingUtilities.ensureEdt(new Runnable() {
+        final SnapshotsFacade facade = instance;
+        Runnable send = new Runnable() {
             @Override
             public void run() {
-                instance.sender.sendNow();
+                TmcSwingUtilities.ensureEdt(new Runnable() {
+                    @Override
+                    public void run() {
+                        facade.sender.sendNow();
+                    }
+                });
             }
-        });
+        };
+        // Spooled events go to the sender first.
+        if (facade.spooler != null) {
+            facade.spooler.drainSoon(send);
+        } else {
+            send.run();
+        }
+    }
+
+    /**
+     * Returns the statistics of the snapshot subsystem, or null if it's not running.
+     * Reported with diagnostics.
+     */
+    public static SnapshotMetrics getMetrics() {
+        SnapshotsFacade facade = instance;
+        return facade != null ? facade.metrics : null;
     }
 
     private TmcCoreSettingsImpl settings;
 
     private EventSendBuffer sender;
+    private SpoolingEventReceiver spooler;
     private EventReceiver taggingSender;
+    private CountingEventReceiver counter;
+    private RateLimitingEventReceiver rateLimiter;
 
     private EventDeduplicater sourceSnapshotDedup;
 
+    private EventPipeline eventPipeline;
+
     private SourceSnapshotEventSource sourceSnapshotSource;
     private ProjectActionEventSource projectActionSource;
     private TmcEventBusEventSource tmcEventBusSource;
     private TextInsertEventSource textInsertEventSource;
     private WindowStatechangesEventSource windowStatechangesEventSource;
 
+    private SnapshotMetrics metrics;
+
       private static final class TaggingEventReceiver implements EventReceiver {
 
         private final EventReceiver nextReceiver;
@@ -99,30 +133,77 @@ public class SnapshotsFacade {
     public SnapshotsFacade() {
         settings = (TmcCoreSettingsImpl)TmcSettingsHolder.get();
 
-        sender = new EventSendBuffer(new EventStore());
+        ObservedEventStore eventStore = new ObservedEventStore();
+        sender = new EventSendBuffer(eventStore);
         sender.sendNow();
 
+        EventReceiver next = sender;
+        try {
+            spooler = new SpoolingEventReceiver(
+                    new EventSpool(settings.getConfigRoot().resolve(SPOOL_DIR)), sender);
+            next = spooler;
+            eventStore.setListener(new ObservedEventStore.Listener() {
+                @Override
+                public void saved(int eventCount) {
+                    spooler.sendBufferSaved(eventCount);
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to open the snapshot event spool, keeping events in memory", e);
+        }
+
         String hostId = new HostInformationGenerator().updateHostInformation(sender);
-        taggingSender = new TaggingEventReceiver(sender, hostId);
-        sourceSnapshotDedup = new EventDeduplicater(taggingSender);
-        sourceSnapshotSource = new SourceSnapshotEventSource(sourceSnapshotDedup);
+        taggingSender = new TaggingEventReceiver(next, hostId);
+        counter = new CountingEventReceiver(taggingSender);
+        rateLimiter = new RateLimitingEventReceiver(counter);
+        sourceSnapshotDedup = new EventDeduplicater(rateLimiter);
+        // Delta snapshots skip the deduplicater, since two of them can be equal.
+        sourceSnapshotSource = new SourceSnapshotEventSource(sourceSnapshotDedup, rateLimiter);
+        if (spooler != null) {
+            // A lost delta snapshot breaks the later ones until the next full snapshot.
+            spooler.setDropListener(new Runnable() {
+                @Override
+                public void run() {
+                    sourceSnapshotSource.forceFullSnapshots();
+                }
+            });
+        } else {
+            // Events dropped by the send buffer can't be noticed.
+            sourceSnapshotSource.setDeltaSnapshotsAllowed(false);
+        }
         sourceSnapshotSource.startListeningToFileChanges();
 
-        projectActionSource = new ProjectActionEventSource(taggingSender);
-        tmcEventBusSource = new TmcEventBusEventSource(taggingSender);
+        projectActionSource = new ProjectActionEventSource(rateLimiter);
+        tmcEventBusSource = new TmcEventBusEventSource(rateLimiter);
 
-        windowStatechangesEventSource = new WindowStatechangesEventSource(taggingSender);
+        eventPipeline = new EventPipeline();
+        windowStatechangesEventSource = new WindowStatechangesEventSource(rateLimiter, eventPipeline);
         TmcSwingUtilities.ensureEdt(new Runnable() {
             @Override
             public void run() {
                 ProjectActionCaptor.addListener(projectActionSource);
                 TmcEventBus.getDefault().subscribeStrongly(tmcEventBusSource);
-                textInsertEventSource = new TextInsertEventSource(taggingSender);
+                textInsertEventSource = new TextInsertEventSource(rateLimiter, eventPipeline);
             }
         });
+
+        metrics = new SnapshotMetrics(counter, rateLimiter, spooler, eventPipeline,
+                sourceSnapshotSource, textInsertEventSource);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(SnapshotMetrics.OBJECT_NAME));
+        } catch (JMException e) {
+            log.log(Level.INFO, "Failed to register snapshot metrics", e);
+        }
     }
 
     private void closeImpl() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(SnapshotMetrics.OBJECT_NAME));
+        } catch (JMException e) {
+            log.log(Level.FINE, "Failed to unregister snapshot metrics", e);
+        }
+        log.log(Level.INFO, "Snapshot metrics at close:\n{0}", metrics.getReport());
+
         // Close & flush back to front
 
         TmcSwingUtilities.ensureEdt(new Runnable() {
@@ -135,9 +216,13 @@ public class SnapshotsFacade {
             }
         });
 
+        eventPipeline.close();
         sourceSnapshotSource.close();
 
         sourceSnapshotDedup.close();
+        if (spooler != null) {
+            spooler.close();
+        }
         sender.close();
     }
 
@@ -0,0 +1,257 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Writes events to an {@link EventSpool} and hands them to the next receiver
+ * in batches.
+ *
+ * <p>
+ * Events are collected for up to {@link #WRITE_DELAY} and written to the spool
+ * as one {@link EventBatchCodec} record. A batch is taken from the spool only
+ * after the next receiver has its events, so events not yet passed on survive
+ * a restart. Batches are passed on only while the next receiver, the send
+ * buffer, holds fewer than {@link #MAX_BUFFERED_EVENTS} events. That is known
+ * from {@link #sendBufferSaved}, and a large backlog stays on disk instead of
+ * in memory while the events can't be sent.
+ *
+ * <p>
+ * If spooled events are lost, e.g. because the spool grew too large, the
+ * drop listener is told about it.
+ */
+class SpoolingEventReceiver implements EventReceiver {
+    private static final Logger log = Logger.getLogger(SpoolingEventReceiver.class.getName());
+
+    /*package*/ static final int WRITE_DELAY = 1000;
+    /*package*/ static final int WRITE_BATCH_SIZE = 64;
+    /*package*/ static final int DRAIN_BATCHES = 8;
+    /*package*/ static final int DRAIN_INTERVAL = 10 * 1000;
+    /*package*/ static final int MAX_BUFFERED_EVENTS = 2000;
+
+    private final EventSpool spool;
+    private final EventReceiver nextReceiver;
+    private final EventBatchCodec codec;
+    private final RequestProcessor processor;
+    private final RequestProcessor.Task writeTask;
+    private final RequestProcessor.Task drainTask;
+    private final AtomicInteger bufferedEvents; // in the next receiver, estimated
+    private volatile Runnable dropListener;
+    private long droppedRecordsSeen; // only accessed in the processor or after it's shut down
+    private List<LoggableEvent> pending; // guarded by this
+    private boolean closed; // guarded by this
+
+    public SpoolingEventReceiver(EventSpool spool, EventReceiver nextReceiver) {
+        this.spool = spool;
+        this.nextReceiver = nextReceiver;
+        this.codec = new EventBatchCodec();
+        this.pending = new ArrayList<LoggableEvent>();
+        this.bufferedEvents = new AtomicInteger();
+        this.processor = new RequestProcessor("Snapshot event spool", 1, true);
+        this.writeTask = processor.create(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        });
+        this.drainTask = processor.create(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                synchronized (SpoolingEventReceiver.this) {
+                    if (!closed) {
+                        drainTask.schedule(DRAIN_INTERVAL);
+                    }
+                }
+            }
+        });
+        // Pass on what was left over from the last session right away.
+        this.drainTask.schedule(0);
+    }
+
+    @Override
+    public void receiveEvent(LoggableEvent event) {
+        synchronized (this) {
+            if (!closed) {
+                pending.add(event);
+                if (pending.size() == 1) {
+                    writeTask.schedule(WRITE_DELAY);
+                } else if (pending.size() == WRITE_BATCH_SIZE) {
+                    writeTask.schedule(0);
+                }
+                return;
+            }
+        }
+        log.log(Level.FINE, "Event spool closed, passing an event on directly");
+        nextReceiver.receiveEvent(event);
+    }
+
+    /**
+     * Sets a task to run, in the background, whenever spooled events are lost.
+     */
+    public void setDropListener(Runnable listener) {
+        this.dropListener = listener;
+    }
+
+    /**
+     * Tells how many events the send buffer held when it last saved them.
+     * Passes more events on if it has room for them.
+     */
+    public void sendBufferSaved(int eventCount) {
+        bufferedEvents.set(eventCount);
+        if (eventCount < MAX_BUFFERED_EVENTS) {
+            synchronized (this) {
+                if (!closed) {
+                    drainTask.schedule(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns roughly how many events the send buffer holds.
+     */
+    public int getBufferedEventCount() {
+        return bufferedEvents.get();
+    }
+
+    /**
+     * Returns the number of events collected but not yet spooled.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the size of the events spooled but not yet passed on.
+     */
+    public long getSpoolBytes() {
+        return spool.getSize();
+    }
+
+    /**
+     * Returns the number of batches lost because the spool was full.
+     */
+    public long getDroppedBatches() {
+        return spool.getDroppedRecords();
+    }
+
+    /**
+     * Spools the collected events and passes on a round of spooled events in
+     * the background, then runs the given task.
+     */
+    public void drainSoon(final Runnable then) {
+        if (processor.isShutdown()) {
+            then.run();
+            return;
+        }
+        processor.post(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+                drain();
+                then.run();
+            }
+        });
+    }
+
+    /**
+     * Spools the collected events and closes the spool, leaving the rest of
+     * the events for the next session. Does not close the next receiver.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            drainTask.cancel();
+        }
+        processor.shutdown();
+        try {
+            processor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writePending();
+        try {
+            spool.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to close the event spool", e);
+        }
+    }
+
+    private void writePending() {
+        List<LoggableEvent> events;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            events = pending;
+            pending = new ArrayList<LoggableEvent>();
+        }
+        try {
+            spool.append(codec.encode(events));
+            long dropped = spool.getDroppedRecords();
+            if (dropped != droppedRecordsSeen) {
+                droppedRecordsSeen = dropped;
+                notifyDrop();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to spool events, passing them on directly", e);
+            for (LoggableEvent event : events) {
+                nextReceiver.receiveEvent(event);
+            }
+            bufferedEvents.addAndGet(events.size());
+        }
+    }
+
+    private void drain() {
+        try {
+            while (bufferedEvents.get() < MAX_BUFFERED_EVENTS) {
+                List<byte[]> records = spool.peek(DRAIN_BATCHES);
+                if (records.isEmpty()) {
+                    return;
+                }
+                int passed = 0;
+                for (byte[] record : records) {
+                    if (passed > 0 && bufferedEvents.get() >= MAX_BUFFERED_EVENTS) {
+                        break;
+                    }
+                    try {
+                        List<LoggableEvent> events = codec.decode(record);
+                        for (LoggableEvent event : events) {
+                            nextReceiver.receiveEvent(event);
+                        }
+                        bufferedEvents.addAndGet(events.size());
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Dropping an unreadable batch of spooled events", e);
+                        notifyDrop();
+                    }
+                    passed++;
+                }
+                spool.take(passed);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read spooled events", e);
+        }
+    }
+
+    private void notifyDrop() {
+        Runnable listener = dropListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Event drop listener failed", e);
+            }
+        }
+    }
+}
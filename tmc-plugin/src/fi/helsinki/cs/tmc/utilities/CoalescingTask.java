@@ -0,0 +1,67 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import org.openide.util.RequestProcessor;
+
+/**
+ * Runs a task in a background thread a while after it was requested.
+ *
+ * <p>
+ * Requests made before the pending run starts are merged into it, so a burst
+ * of requests causes only one run. Runs never overlap.
+ */
+public class CoalescingTask {
+    private final Object lock = new Object();
+    private final Runnable task;
+    private final RequestProcessor.Task rpTask;
+    private final int delay; // milliseconds
+    private boolean pending;
+
+    public CoalescingTask(String name, int delay, Runnable task) {
+        this.task = task;
+        this.delay = delay;
+        this.rpTask = new RequestProcessor(name, 1, true).create(new Runnable() {
+            @Override
+            public void run() {
+                runNow();
+            }
+        }, true); // Initially finished so that flush() doesn't wait for a task that was never scheduled.
+    }
+
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * Schedules the task unless it is already pending.
+     */
+    public void request() {
+        synchronized (lock) {
+            if (pending) {
+                return;
+            }
+            pending = true;
+        }
+        rpTask.schedule(delay);
+    }
+
+    /**
+     * Runs a pending task immediately and waits for it to finish.
+     */
+    public void flush() {
+        boolean wasPending;
+        synchronized (lock) {
+            wasPending = pending;
+        }
+        if (wasPending) {
+            rpTask.schedule(0);
+        }
+        rpTask.waitFinished();
+    }
+
+    private void runNow() {
+        synchronized (lock) {
+            pending = false;
+        }
+        task.run();
+    }
+}
@@ -0,0 +1,42 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in roughly logarithmic buckets. Thread-safe.
+ */
+public class LatencyHistogram {
+    private static final long[] BUCKET_LIMITS = {10, 30, 100, 300, 1000, 3000, 10000}; // milliseconds
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+
+    public void record(long millis) {
+        int i = 0;
+        while (i < BUCKET_LIMITS.length && millis > BUCKET_LIMITS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the counts by bucket label, from fastest to slowest.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < BUCKET_LIMITS.length; ++i) {
+            result.put("<= " + BUCKET_LIMITS[i] + " ms", counts.get(i));
+        }
+        result.put("> " + BUCKET_LIMITS[BUCKET_LIMITS.length - 1] + " ms", counts.get(BUCKET_LIMITS.length));
+        return result;
+    }
+}
@@ -1,5 +1,10 @@
 package fi.helsinki.cs.tmc.utilities;
 
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.logging.Logger;
 import org.netbeans.api.project.FileOwnerQuery;
 import org.netbeans.api.project.Project;
@@ -29,4 +34,21 @@ public class TmcFileUtils {
         
         return filePath;
     }
+
+    /**
+     * Replaces the contents of a file so that readers see either the old or
+     * the new contents but never a partially written file.
+     * 
+     * The data is first written to a temporary file next to the target,
+     * which is then renamed over the target.
+     */
+    public static void writeAtomically(Path file, byte[] data) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tempFile, data);
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
@@ -0,0 +1,70 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows a burst of actions and then a steady rate of them.
+ *
+ * <p>
+ * The bucket holds up to {@code capacity} tokens and gains
+ * {@code tokensPerSecond} tokens per second. Each action takes a token.
+ * Thread-safe.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens; // may be negative after reserve()
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, System.nanoTime());
+    }
+
+    /*package*/ TokenBucket(double capacity, double tokensPerSecond, long nowNanos) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = nowNanos;
+    }
+
+    /**
+     * Takes a token if there is one.
+     */
+    public boolean tryTake() {
+        return tryTake(System.nanoTime());
+    }
+
+    /*package*/ synchronized boolean tryTake(long nowNanos) {
+        refill(nowNanos);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a token even if there is none, and returns how many milliseconds
+     * to wait before acting on it.
+     */
+    public long reserve() {
+        return reserve(System.nanoTime());
+    }
+
+    /*package*/ synchronized long reserve(long nowNanos) {
+        refill(nowNanos);
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((long) Math.ceil(-tokens / tokensPerNano));
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            lastRefill = nowNanos;
+        }
+    }
+}
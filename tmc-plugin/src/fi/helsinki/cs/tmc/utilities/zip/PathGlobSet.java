@@ -0,0 +1,196 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A set of glob patterns for slash-separated relative paths, compiled into a trie
+ * of path segments.
+ *
+ * <p>
+ * Supported wildcards are {@code *} and {@code ?}, which don't match slashes, and
+ * {@code **} as a whole segment, which matches any number of segments.
+ * A trailing slash on a pattern or a path is ignored.
+ *
+ * <p>
+ * Plain segments are looked up from hash maps, so the cost of matching depends on
+ * the depth of the path rather than on the number of patterns.
+ */
+public class PathGlobSet {
+    private static class Node {
+        private final Map<String, Node> literalChildren = new HashMap<String, Node>();
+        private final List<Pattern> wildcardPatterns = new ArrayList<Pattern>();
+        private final List<Node> wildcardChildren = new ArrayList<Node>();
+        private Node anySegmentsChild; // Set by '**'.
+        private boolean matchesAnySegment; // True for '**' nodes, which loop to themselves.
+        private boolean terminal;
+
+        private boolean hasChildren() {
+            return !literalChildren.isEmpty() || !wildcardChildren.isEmpty() || anySegmentsChild != null;
+        }
+    }
+
+    private final Node root;
+    private final boolean empty;
+
+    public static PathGlobSet compile(Collection<String> patterns) {
+        return new PathGlobSet(patterns);
+    }
+
+    private PathGlobSet(Collection<String> patterns) {
+        this.root = new Node();
+        for (String pattern : patterns) {
+            add(pattern);
+        }
+        this.empty = !root.hasChildren() && !root.terminal;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Tells whether some pattern matches the given path.
+     */
+    public boolean matches(String path) {
+        if (empty) {
+            return false;
+        }
+        for (Node node : walk(path)) {
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether some pattern could match a path below the given directory.
+     * If not, the directory needn't be looked into.
+     */
+    public boolean mayMatchBelow(String dirPath) {
+        if (empty) {
+            return false;
+        }
+        for (Node node : walk(dirPath)) {
+            if (node.hasChildren() || node.matchesAnySegment) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(String pattern) {
+        Node node = root;
+        for (String segment : splitPath(pattern)) {
+            if (segment.equals("**")) {
+                if (node.anySegmentsChild == null) {
+                    node.anySegmentsChild = new Node();
+                    node.anySegmentsChild.matchesAnySegment = true;
+                }
+                node = node.anySegmentsChild;
+            } else if (segment.indexOf('*') != -1 || segment.indexOf('?') != -1) {
+                String regex = segmentGlobToRegex(segment);
+                int i = indexOfPattern(node.wildcardPatterns, regex);
+                if (i == -1) {
+                    node.wildcardPatterns.add(Pattern.compile(regex));
+                    node.wildcardChildren.add(new Node());
+                    i = node.wildcardChildren.size() - 1;
+                }
+                node = node.wildcardChildren.get(i);
+            } else {
+                Node child = node.literalChildren.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.literalChildren.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        node.terminal = true;
+    }
+
+    private Set<Node> walk(String path) {
+        Set<Node> states = new HashSet<Node>();
+        addWithClosure(states, root);
+        for (String segment : splitPath(path)) {
+            Set<Node> next = new HashSet<Node>();
+            for (Node node : states) {
+                if (node.matchesAnySegment) {
+                    addWithClosure(next, node);
+                }
+                Node literal = node.literalChildren.get(segment);
+                if (literal != null) {
+                    addWithClosure(next, literal);
+                }
+                for (int i = 0; i < node.wildcardPatterns.size(); ++i) {
+                    if (node.wildcardPatterns.get(i).matcher(segment).matches()) {
+                        addWithClosure(next, node.wildcardChildren.get(i));
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return next;
+            }
+            states = next;
+        }
+        return states;
+    }
+
+    private static void addWithClosure(Set<Node> states, Node node) {
+        // '**' may match zero segments.
+        while (node != null && states.add(node)) {
+            node = node.anySegmentsChild;
+        }
+    }
+
+    private static String[] splitPath(String path) {
+        String trimmed = path;
+        while (trimmed.startsWith("/")) {
+            trimmed = trimmed.substring(1);
+        }
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (trimmed.isEmpty()) {
+            return new String[0];
+        }
+        return trimmed.split("/+");
+    }
+
+    private static String segmentGlobToRegex(String segment) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < segment.length(); ++i) {
+            char c = segment.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    sb.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                sb.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            sb.append(Pattern.quote(literal.toString()));
+        }
+        return sb.toString();
+    }
+
+    private static int indexOfPattern(List<Pattern> patterns, String regex) {
+        for (int i = 0; i < patterns.size(); ++i) {
+            if (patterns.get(i).pattern().equals(regex)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,191 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes a zip archive whose entries have already been deflated elsewhere.
+ *
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} insists on compressing the data itself,
+ * which rules out compressing entries in parallel. This writes just enough of
+ * the format for {@link RecursiveZipper}: no zip64, no extra fields, no comments.
+ */
+class PrecompressedZipWriter {
+    /*package*/ static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8_NAMES = 0x0800;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    /**
+     * A deflated file or a directory (with no data).
+     */
+    public static class Entry {
+        private final String name;
+        private final byte[] deflatedData;
+        private final long crc;
+        private final long uncompressedSize;
+
+        public static Entry directory(String name) {
+            return new Entry(name, null, 0, 0);
+        }
+
+        public static Entry file(String name, byte[] deflatedData, long crc, long uncompressedSize) {
+            return new Entry(name, deflatedData, crc, uncompressedSize);
+        }
+
+        private Entry(String name, byte[] deflatedData, long crc, long uncompressedSize) {
+            this.name = name;
+            this.deflatedData = deflatedData;
+            this.crc = crc;
+            this.uncompressedSize = uncompressedSize;
+        }
+
+        private int method() {
+            return deflatedData != null ? METHOD_DEFLATED : METHOD_STORED;
+        }
+
+        private long compressedSize() {
+            return deflatedData != null ? deflatedData.length : 0;
+        }
+    }
+
+    private static class WrittenEntry {
+        private final Entry entry;
+        private final byte[] nameBytes;
+        private final long offset;
+
+        public WrittenEntry(Entry entry, byte[] nameBytes, long offset) {
+            this.entry = entry;
+            this.nameBytes = nameBytes;
+            this.offset = offset;
+        }
+    }
+
+    private final OutputStream out;
+    private final int dosTime;
+    private final List<WrittenEntry> written;
+    private long offset;
+
+    public PrecompressedZipWriter(OutputStream out) {
+        this.out = out;
+        this.dosTime = toDosTime(System.currentTimeMillis());
+        this.written = new ArrayList<WrittenEntry>();
+        this.offset = 0;
+    }
+
+    public void write(Entry entry) throws IOException {
+        if (written.size() >= MAX_ENTRIES) {
+            throw new IOException("Too many zip entries");
+        }
+        if (entry.uncompressedSize > MAX_OFFSET || entry.compressedSize() > MAX_OFFSET) {
+            throw new IOException("Zip entry too large: " + entry.name);
+        }
+
+        byte[] nameBytes = entry.name.getBytes(UTF8);
+        written.add(new WrittenEntry(entry, nameBytes, offset));
+
+        writeInt(0x04034b50);
+        writeShort(VERSION);
+        writeShort(FLAG_UTF8_NAMES);
+        writeShort(entry.method());
+        writeInt(dosTime);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize());
+        writeInt(entry.uncompressedSize);
+        writeShort(nameBytes.length);
+        writeShort(0); // extra field length
+        writeBytes(nameBytes);
+        if (entry.deflatedData != null) {
+            writeBytes(entry.deflatedData);
+        }
+        checkOffset();
+    }
+
+    /**
+     * Writes the central directory. The stream is not closed.
+     */
+    public void finish() throws IOException {
+        long centralDirOffset = offset;
+        for (WrittenEntry we : written) {
+            Entry entry = we.entry;
+            writeInt(0x02014b50);
+            writeShort(VERSION); // made by
+            writeShort(VERSION); // needed to extract
+            writeShort(FLAG_UTF8_NAMES);
+            writeShort(entry.method());
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize());
+            writeInt(entry.uncompressedSize);
+            writeShort(we.nameBytes.length);
+            writeShort(0); // extra field length
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(we.offset);
+            writeBytes(we.nameBytes);
+        }
+        long centralDirSize = offset - centralDirOffset;
+        checkOffset();
+
+        writeInt(0x06054b50);
+        writeShort(0); // this disk
+        writeShort(0); // disk with central directory
+        writeShort(written.size());
+        writeShort(written.size());
+        writeInt(centralDirSize);
+        writeInt(centralDirOffset);
+        writeShort(0); // comment length
+        out.flush();
+    }
+
+    private void checkOffset() throws IOException {
+        if (offset > MAX_OFFSET) {
+            throw new IOException("Zip too large");
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        offset += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xFF));
+        out.write((int) ((v >>> 8) & 0xFF));
+        out.write((int) ((v >>> 16) & 0xFF));
+        out.write((int) ((v >>> 24) & 0xFF));
+        offset += 4;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+        offset += bytes.length;
+    }
+
+    private static int toDosTime(long millis) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(millis);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -2,16 +2,44 @@ package fi.helsinki.cs.tmc.utilities.zip;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
-import org.apache.commons.io.IOUtils;
+import org.openide.util.RequestProcessor;
 
 public class RecursiveZipper {
+    private static final int MAX_COMPRESSION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /*package*/ static final long MAX_BYTES_IN_FLIGHT = 8 * 1024 * 1024;
+
+    // Shared by all parallel zippers so that they can't take over the machine.
+    private static final RequestProcessor compressionProcessor =
+            new RequestProcessor("Zip compression", MAX_COMPRESSION_THREADS, true);
+
     private File rootDir;
     private ZippingDecider zippingDecider;
+    private boolean parallel;
     
     public interface ZippingDecider {
         /**
@@ -21,6 +49,15 @@ public class RecursiveZipper {
          * Directory paths always end in a slash.
          */
         boolean shouldZip(String zipPath);
+
+        /**
+         * Tells whether a directory that {@link #shouldZip} accepted gets an
+         * entry of its own, or is only looked into for files to zip.
+         * The root directory always gets an entry.
+         */
+        default boolean shouldZipDirectoryEntry(String dirZipPath) {
+            return true;
+        }
     }
     
     public static final ZippingDecider ZIP_ALL_THE_THINGS = new ZippingDecider() {
@@ -33,41 +70,103 @@ public class RecursiveZipper {
     public RecursiveZipper(File rootDir, ZippingDecider zippingDecider) {
         this.rootDir = rootDir;
         this.zippingDecider = zippingDecider;
+        this.parallel = false;
+    }
+    
+    public boolean isParallel() {
+        return parallel;
+    }
+    
+    /**
+     * Sets whether files are read and compressed in parallel.
+     * 
+     * <p>
+     * In parallel mode the entries are ordered by their paths, so the same tree
+     * always produces the same zip. The zipping decider is still called from
+     * the calling thread only. Files that are read but not yet written to the
+     * zip are limited to about {@link #MAX_BYTES_IN_FLIGHT}.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
     }
     
     /**
      * Zip up a project directory, only including stuff decided by the {@link ZippingDecider}.
+     * 
+     * <p>
+     * The whole zip is held in memory. Prefer {@link #zipProjectSources(OutputStream)}
+     * when the zip is going to be written somewhere anyway.
      */
     public byte[] zipProjectSources() throws IOException {
+        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
+        zipProjectSources(zipBuffer);
+        return zipBuffer.toByteArray();
+    }
+    
+    /**
+     * Zip up a project directory into the given stream, only including stuff
+     * decided by the {@link ZippingDecider}.
+     * 
+     * <p>
+     * The stream is not closed.
+     */
+    public void zipProjectSources(OutputStream out) throws IOException {
         if (!rootDir.exists() || !rootDir.isDirectory()) {
             throw new FileNotFoundException("Root directory " + rootDir + " not found for zipping!");
         }
         
-        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
-        ZipOutputStream zos = new ZipOutputStream(zipBuffer);
-        
-        try {
-            zipRecursively(rootDir, zos, "");
-        } finally {
-            zos.close();
+        if (parallel) {
+            zipInParallel(out);
+        } else {
+            zipSerially(out);
+        }
+    }
+
+    private void zipSerially(OutputStream out) throws IOException {
+        // Closing the ZipOutputStream frees its Deflater's native memory,
+        // but the caller's stream must stay open.
+        try (ZipOutputStream zos = new ZipOutputStream(new NonClosingOutputStream(out))) {
+            zipRecursively(rootDir, zos, "", true);
         }
+    }
 
-        return zipBuffer.toByteArray();
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+    
+    /**
+     * Zip up a project directory into the given channel, only including stuff
+     * decided by the {@link ZippingDecider}.
+     * 
+     * <p>
+     * The channel is not closed.
+     */
+    public void zipProjectSources(WritableByteChannel out) throws IOException {
+        zipProjectSources(Channels.newOutputStream(out));
     }
 
     private void writeEntry(File file, ZipOutputStream zos, String zipPath) throws IOException {
         zos.putNextEntry(new ZipEntry(zipPath + "/" + file.getName()));
-
-        FileInputStream in = new FileInputStream(file);
-        IOUtils.copy(in, zos);
-        in.close();
+        Files.copy(file.toPath(), zos);
         zos.closeEntry();
     }
 
     /**
      * Zips a directory recursively.
      */
-    private void zipRecursively(File dir, ZipOutputStream zos, String parentZipPath) throws IOException {
+    private void zipRecursively(File dir, ZipOutputStream zos, String parentZipPath, boolean withEntry) throws IOException {
         String thisDirZipPath;
         if (parentZipPath.isEmpty()) {
             thisDirZipPath = dir.getName();
@@ -75,11 +174,15 @@ public class RecursiveZipper {
             thisDirZipPath = parentZipPath + "/" + dir.getName();
         }
 
-        // Create an entry for the directory
-        zos.putNextEntry(new ZipEntry(thisDirZipPath + "/"));
-        zos.closeEntry();
+        if (withEntry) {
+            zos.putNextEntry(new ZipEntry(thisDirZipPath + "/"));
+            zos.closeEntry();
+        }
 
         File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list directory " + dir);
+        }
         for (File file : files) {
             boolean isDir = file.isDirectory();
             String zipPath = thisDirZipPath + "/" + file.getName();
@@ -88,11 +191,141 @@ public class RecursiveZipper {
             }
             if (zippingDecider.shouldZip(zipPath)) {
                 if (isDir) {
-                    zipRecursively(file, zos, thisDirZipPath);
+                    zipRecursively(file, zos, thisDirZipPath, zippingDecider.shouldZipDirectoryEntry(zipPath));
                 } else {
                     writeEntry(file, zos, thisDirZipPath);
                 }
             }
         }
     }
+
+    private void zipInParallel(OutputStream out) throws IOException {
+        final List<String> zipPaths = listEntriesToZip();
+        if (zipPaths.size() > PrecompressedZipWriter.MAX_ENTRIES) {
+            zipSerially(out);
+            return;
+        }
+
+        final File rootParent = rootDir.getAbsoluteFile().getParentFile();
+        PrecompressedZipWriter writer = new PrecompressedZipWriter(out);
+        // Entries are compressed ahead of the writer only as far as the byte limit allows.
+        Deque<Future<PrecompressedZipWriter.Entry>> inFlight = new ArrayDeque<Future<PrecompressedZipWriter.Entry>>();
+        Deque<Long> inFlightSizes = new ArrayDeque<Long>();
+        long bytesInFlight = 0;
+        int next = 0;
+        try {
+            while (next < zipPaths.size() || !inFlight.isEmpty()) {
+                while (next < zipPaths.size()) {
+                    final String zipPath = zipPaths.get(next);
+                    final File file = new File(rootParent, zipPath);
+                    long size = zipPath.endsWith("/") ? 0 : file.length();
+                    if (!inFlight.isEmpty() && bytesInFlight + size > MAX_BYTES_IN_FLIGHT) {
+                        break;
+                    }
+                    inFlight.addLast(compressionProcessor.submit(new Callable<PrecompressedZipWriter.Entry>() {
+                        @Override
+                        public PrecompressedZipWriter.Entry call() throws IOException {
+                            if (zipPath.endsWith("/")) {
+                                return PrecompressedZipWriter.Entry.directory(zipPath);
+                            } else {
+                                return compress(zipPath, file);
+                            }
+                        }
+                    }));
+                    inFlightSizes.addLast(size);
+                    bytesInFlight += size;
+                    next++;
+                }
+
+                writer.write(inFlight.removeFirst().get());
+                bytesInFlight -= inFlightSizes.removeFirst();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while zipping", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<PrecompressedZipWriter.Entry> entry : inFlight) {
+                entry.cancel(false);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Walks the tree asking the zipping decider, and returns the zip paths
+     * of the chosen files and directories in a stable order.
+     * Directory paths end in a slash.
+     */
+    public List<String> listEntriesToZip() throws IOException {
+        final Path root = rootDir.toPath();
+        final String rootZipPath = rootDir.getName();
+        final List<String> result = new ArrayList<String>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String zipPath = toZipPath(dir) + "/";
+                if (dir.equals(root)) {
+                    result.add(zipPath);
+                    return FileVisitResult.CONTINUE;
+                } else if (zippingDecider.shouldZip(zipPath)) {
+                    if (zippingDecider.shouldZipDirectoryEntry(zipPath)) {
+                        result.add(zipPath);
+                    }
+                    return FileVisitResult.CONTINUE;
+                } else {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String zipPath = toZipPath(file);
+                if (zippingDecider.shouldZip(zipPath)) {
+                    result.add(zipPath);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // E.g. a symlink loop or an unreadable directory.
+                // Fail like the serial mode does rather than leave the file out.
+                throw exc;
+            }
+
+            private String toZipPath(Path path) {
+                String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+                return relative.isEmpty() ? rootZipPath : rootZipPath + "/" + relative;
+            }
+        });
+        Collections.sort(result);
+        return result;
+    }
+
+    private static PrecompressedZipWriter.Entry compress(String zipPath, File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                compressed.write(buf, 0, n);
+            }
+            return PrecompressedZipWriter.Entry.file(zipPath, compressed.toByteArray(), crc.getValue(), data.length);
+        } finally {
+            deflater.end();
+        }
+    }
 }
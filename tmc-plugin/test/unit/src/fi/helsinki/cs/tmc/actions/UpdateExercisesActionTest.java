@@ -0,0 +1,140 @@
+package fi.helsinki.cs.tmc.actions;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.domain.ExerciseKey;
+import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.DownloadScheduler;
+import fi.helsinki.cs.tmc.model.ExerciseArchiveCache;
+import fi.helsinki.cs.tmc.model.ProjectMediator;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UpdateExercisesActionTest {
+    private TempTestDir tempDir;
+    private Path templateDir;
+    private Path projectDir;
+    private CourseDb courseDb;
+    private ExerciseArchiveCache archiveCache;
+    private UpdateExercisesAction action;
+    private int coreUpdates;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        templateDir = tempDir.get().toPath().resolve("template/ex1");
+        projectDir = tempDir.get().toPath().resolve("projects/ex1");
+        courseDb = mock(CourseDb.class);
+        archiveCache = new ExerciseArchiveCache(tempDir.get().toPath().resolve("cache"), 1024 * 1024);
+        action = new UpdateExercisesAction(ImmutableList.<Exercise>of(), courseDb, mock(ProjectMediator.class), archiveCache,
+                mock(DownloadScheduler.class), mock(ConvenientDialogDisplayer.class), mock(TmcEventBus.class));
+        coreUpdates = 0;
+
+        write(templateDir.resolve("src/Main.java"), "class Main {}");
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest {}");
+        FileUtils.copyDirectory(templateDir.toFile(), projectDir.toFile());
+        archiveCache.store(exercise("v1"), projectDir);
+        write(projectDir.resolve("src/Main.java"), "class Main { /* solved */ }");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void theNextUpdateAfterAFullUpdateIsDoneFromTheCache() throws Exception {
+        // v2 is not cached, so the core updates the project.
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest { void v2() {} }");
+        installedVersion("v1");
+        List<Exercise> result = action.updateTask(exercise("v2"), projectDir, coreUpdate()).call();
+        assertEquals(1, result.size());
+        assertEquals(1, coreUpdates);
+        assertNotNull(archiveCache.tryGetTemplateFiles("v2"));
+
+        // v3 was downloaded somewhere else, so only its changes need to be written.
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest { void v3() {} }");
+        write(templateDir.resolve("src/Main.java"), "class Main { /* v3 stub */ }");
+        archiveCache.store(exercise("v3"), templateDir);
+        installedVersion("v2");
+        action.updateTask(exercise("v3"), projectDir, coreUpdate()).call();
+
+        assertEquals(1, coreUpdates);
+        assertEquals("class MainTest { void v3() {} }", read(projectDir.resolve("test/MainTest.java")));
+        assertEquals("class Main { /* solved */ }", read(projectDir.resolve("src/Main.java")));
+    }
+
+    @Test
+    public void theStudentFilesOfTheProjectFileAreKept() throws Exception {
+        write(templateDir.resolve(".tmcproject.yml"), "extra_student_files:\n  - test/MainTest.java\n");
+        write(projectDir.resolve(".tmcproject.yml"), "extra_student_files:\n  - test/MainTest.java\n");
+        archiveCache.store(exercise("v2"), templateDir);
+        write(projectDir.resolve("test/MainTest.java"), "class MainTest { /* mine */ }");
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest { void v3() {} }");
+        archiveCache.store(exercise("v3"), templateDir);
+        installedVersion("v2");
+
+        action.updateTask(exercise("v3"), projectDir, coreUpdate()).call();
+
+        assertEquals(0, coreUpdates);
+        assertEquals("class MainTest { /* mine */ }", read(projectDir.resolve("test/MainTest.java")));
+    }
+
+    @Test
+    public void aTemplateThatChangesTheStudentFilesIsUpdatedByTheCore() throws Exception {
+        write(templateDir.resolve(".tmcproject.yml"), "extra_student_files:\n  - test/MainTest.java\n");
+        archiveCache.store(exercise("v2"), templateDir);
+        installedVersion("v1");
+
+        action.updateTask(exercise("v2"), projectDir, coreUpdate()).call();
+
+        assertEquals(1, coreUpdates);
+    }
+
+    private void installedVersion(String checksum) {
+        when(courseDb.getDownloadedExerciseChecksum(any(ExerciseKey.class))).thenReturn(checksum);
+    }
+
+    // Updates the project like the core does: everything but the existing student files is replaced.
+    private Callable<List<Exercise>> coreUpdate() {
+        return () -> {
+            coreUpdates++;
+            for (File file : FileUtils.listFiles(templateDir.toFile(), null, true)) {
+                Path relative = templateDir.relativize(file.toPath());
+                Path target = projectDir.resolve(relative);
+                if (!(relative.startsWith("src") && Files.exists(target))) {
+                    write(target, read(file.toPath()));
+                }
+            }
+            return ImmutableList.of(exercise("new"));
+        };
+    }
+
+    private static Exercise exercise(String checksum) {
+        Exercise ex = new Exercise("ex1", "course");
+        ex.setChecksum(checksum);
+        return ex;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), "UTF-8");
+    }
+}
@@ -0,0 +1,170 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Course;
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.core.domain.ExerciseKey;
+import fi.helsinki.cs.tmc.core.events.TmcEventBus;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CourseDbTest {
+    private TempTestDir tempDir;
+    private Path file;
+    private CourseDb courseDb;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        file = tempDir.get().toPath().resolve("CourseDb.json");
+        courseDb = new CourseDb(mock(TmcEventBus.class), file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        courseDb.flush();
+        tempDir.destroy();
+    }
+
+    @Test
+    public void findsCoursesByName() {
+        courseDb.setAvailableCourses(Arrays.asList(course("one", 3), course("two", 3)));
+        assertEquals("two", courseDb.getCourseByName("two").getName());
+        assertNull(courseDb.getCourseByName("three"));
+    }
+
+    @Test
+    public void findsExercisesOfTheCurrentCourseByKey() {
+        courseDb.setAvailableCourses(Arrays.asList(course("one", 3), course("two", 3)));
+        assertNull(courseDb.getExerciseByKey(new ExerciseKey("one", "ex1")));
+
+        courseDb.setCurrentCourseName("one");
+        assertEquals("ex1", courseDb.getExerciseByKey(new ExerciseKey("one", "ex1")).getName());
+        assertNull(courseDb.getExerciseByKey(new ExerciseKey("two", "ex1")));
+
+        courseDb.setCurrentCourseName("two");
+        assertEquals("two", courseDb.getExerciseByKey(new ExerciseKey("two", "ex1")).getCourseName());
+    }
+
+    @Test
+    public void findsUnlockableExercises() {
+        Course course = course("one", 5);
+        course.setUnlockables(Arrays.asList("ex3", "ex1", "nonexistent"));
+        courseDb.setAvailableCourses(Arrays.asList(course));
+        courseDb.setCurrentCourseName("one");
+
+        List<Exercise> unlockables = courseDb.getCurrentCourseUnlockableExercises();
+        assertEquals(2, unlockables.size());
+        assertEquals("ex3", unlockables.get(0).getName());
+        assertEquals("ex1", unlockables.get(1).getName());
+
+        assertTrue(courseDb.isUnlockable(course.getExercises().get(1)));
+        assertFalse(courseDb.isUnlockable(course.getExercises().get(2)));
+    }
+
+    @Test
+    public void indexIsUpdatedWhenADetailedCourseIsPut() {
+        courseDb.setAvailableCourses(new ArrayList<Course>(Arrays.asList(course("one", 1))));
+        courseDb.setCurrentCourseName("one");
+        assertNull(courseDb.getExerciseByKey(new ExerciseKey("one", "ex2")));
+
+        courseDb.putDetailedCourse(course("one", 3));
+        assertNotNull(courseDb.getExerciseByKey(new ExerciseKey("one", "ex2")));
+        assertSame(courseDb.getCourseByName("one"), courseDb.getCurrentCourse());
+    }
+
+    @Test
+    public void savesAreWrittenInTheBackgroundAndCanBeFlushed() {
+        courseDb.setAvailableCourses(Arrays.asList(course("one", 3), course("two", 3)));
+        courseDb.setCurrentCourseName("two");
+        courseDb.exerciseDownloaded(courseDb.getCurrentCourseExercises().get(0));
+        courseDb.flush();
+        assertTrue(Files.exists(file));
+
+        CourseDb reloaded = new CourseDb(mock(TmcEventBus.class), file);
+        assertEquals("two", reloaded.getCurrentCourseName());
+        assertEquals(2, reloaded.getAvailableCourses().size());
+        assertEquals(3, reloaded.getCurrentCourseExercises().size());
+        assertEquals("checksum0", reloaded.getDownloadedExerciseChecksum(new ExerciseKey("two", "ex0")));
+    }
+
+    @Test(timeout = 10000)
+    public void flushingAnUnchangedDatabaseDoesNotWait() {
+        courseDb.flush();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void restOfTheCourseListIsLoadedOnDemand() {
+        courseDb.setAvailableCourses(Arrays.asList(course("one", 3), course("two", 3), course("three", 3)));
+        courseDb.setCurrentCourseName("two");
+        courseDb.flush();
+
+        CourseDb reloaded = new CourseDb(mock(TmcEventBus.class), file);
+        Course current = reloaded.getCurrentCourse();
+        assertEquals("two", current.getName());
+        assertNotNull(reloaded.getCourseByName("three"));
+
+        List<Course> courses = reloaded.getAvailableCourses();
+        assertEquals(3, courses.size());
+        assertEquals("one", courses.get(0).getName());
+        assertSame(current, courses.get(1));
+        assertSame(current, reloaded.getCurrentCourse());
+    }
+
+    @Test
+    public void readsTheOlderFileFormat() throws IOException {
+        String json = "{\"availableCourses\": [{\"name\": \"one\", \"exercises\": []}, {\"name\": \"two\", \"exercises\": []}],"
+                + " \"currentCourseName\": \"two\","
+                + " \"downloadedExerciseChecksums\": {}}";
+        Files.write(file, json.getBytes("UTF-8"));
+
+        CourseDb reloaded = new CourseDb(mock(TmcEventBus.class), file);
+        assertEquals("two", reloaded.getCurrentCourse().getName());
+        assertEquals(2, reloaded.getAvailableCourses().size());
+    }
+
+    @Test
+    public void anUnreadableCourseListIsNotOverwritten() throws IOException {
+        String json = "{\"currentCourseName\": \"two\","
+                + " \"downloadedExerciseChecksums\": {},"
+                + " \"currentCourse\": {\"name\": \"two\", \"exercises\": []},"
+                + " \"availableCourses\": [{\"name\": \"one\", \"exercises\": []}, {\"name\": ";
+        Files.write(file, json.getBytes("UTF-8"));
+
+        CourseDb reloaded = new CourseDb(mock(TmcEventBus.class), file);
+        reloaded.setCurrentCourseName("two");
+        reloaded.flush();
+
+        assertEquals(json, new String(Files.readAllBytes(file), "UTF-8"));
+    }
+
+    @Test
+    public void changesAreAnnouncedImmediately() {
+        TmcEventBus eventBus = mock(TmcEventBus.class);
+        courseDb = new CourseDb(eventBus, file);
+        courseDb.setCurrentCourseName("one");
+        verify(eventBus).post(any(CourseDb.ChangedEvent.class));
+    }
+
+    private Course course(String name, int exerciseCount) {
+        Course course = new Course(name);
+        List<Exercise> exercises = new ArrayList<Exercise>();
+        for (int i = 0; i < exerciseCount; ++i) {
+            Exercise ex = new Exercise("ex" + i, name);
+            ex.setChecksum("checksum" + i);
+            exercises.add(ex);
+        }
+        course.setExercises(exercises);
+        return course;
+    }
+}
@@ -0,0 +1,96 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExerciseArchiveCacheTest {
+    private TempTestDir tempDir;
+    private Path cacheDir;
+    private Path projectRoot;
+    private ExerciseArchiveCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        cacheDir = tempDir.get().toPath().resolve("cache");
+        projectRoot = tempDir.get().toPath().resolve("projects");
+        cache = new ExerciseArchiveCache(cacheDir, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void restoresAStoredExercise() throws IOException {
+        Exercise ex = exercise("ex1", "abc123");
+        Path dir = createProject("ex1", "hello");
+        cache.store(ex, dir);
+
+        Path restored = projectRoot.resolve("elsewhere");
+        assertTrue(cache.tryRestore(ex, restored));
+        assertEquals("hello", read(restored.resolve("src/Main.java")));
+        assertEquals("lib", read(restored.resolve("lib/lib.jar")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void missesWhenTheChecksumDiffers() throws IOException {
+        cache.store(exercise("ex1", "abc123"), createProject("ex1", "hello"));
+
+        Path restored = projectRoot.resolve("restored");
+        assertFalse(cache.tryRestore(exercise("ex1", "def456"), restored));
+        assertFalse(Files.exists(restored));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void doesNotCacheUnusualChecksums() throws IOException {
+        Exercise ex = exercise("ex1", "../evil");
+        cache.store(ex, createProject("ex1", "hello"));
+        assertFalse(cache.tryRestore(ex, projectRoot.resolve("restored")));
+        assertFalse(Files.exists(cacheDir.resolve("../evil.zip")));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedArchives() throws IOException {
+        cache.store(exercise("ex1", "aaa"), createProject("ex1", "one"));
+        Files.setLastModifiedTime(cacheDir.resolve("aaa.zip"), FileTime.fromMillis(1000));
+        long oneSize = Files.size(cacheDir.resolve("aaa.zip"));
+        cache = new ExerciseArchiveCache(cacheDir, oneSize + oneSize / 2);
+        cache.store(exercise("ex2", "bbb"), createProject("ex2", "two"));
+
+        assertFalse(Files.exists(cacheDir.resolve("aaa.zip")));
+        assertTrue(Files.exists(cacheDir.resolve("bbb.zip")));
+    }
+
+    private Exercise exercise(String name, String checksum) {
+        Exercise ex = new Exercise(name, "course");
+        ex.setChecksum(checksum);
+        return ex;
+    }
+
+    private Path createProject(String name, String content) throws IOException {
+        Path dir = projectRoot.resolve(name);
+        Files.createDirectories(dir.resolve("src"));
+        Files.createDirectories(dir.resolve("lib"));
+        Files.write(dir.resolve("src/Main.java"), content.getBytes("UTF-8"));
+        Files.write(dir.resolve("lib/lib.jar"), "lib".getBytes("UTF-8"));
+        return dir;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), "UTF-8");
+    }
+}
@@ -0,0 +1,117 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExerciseProjectScannerTest {
+    private TempTestDir tempDir;
+    private Path projectRoot;
+    private Set<Path> openProjectDirs;
+    private AtomicInteger probeCount;
+    private ExerciseProjectScanner.ProjectProbe probe;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        projectRoot = tempDir.get().toPath().toRealPath();
+        openProjectDirs = new HashSet<Path>();
+        probeCount = new AtomicInteger();
+        probe = new ExerciseProjectScanner.ProjectProbe() {
+            @Override
+            public boolean isProject(Path dir) {
+                probeCount.incrementAndGet();
+                return Files.isDirectory(dir.resolve("nbproject"));
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void findsMissingClosedAndOpenProjects() throws IOException {
+        Exercise missing = new Exercise("missing", "course");
+        Exercise notProject = new Exercise("not-project", "course");
+        Exercise closed = new Exercise("closed", "course");
+        Exercise open = new Exercise("open", "course");
+        Files.createDirectories(projectRoot.resolve("course/not-project"));
+        createProject("course", "closed");
+        openProjectDirs.add(createProject("course", "open"));
+
+        Map<Exercise, ExerciseProjectScanner.State> states = scan(missing, notProject, closed, open);
+
+        assertEquals(ExerciseProjectScanner.State.MISSING, states.get(missing));
+        assertEquals(ExerciseProjectScanner.State.MISSING, states.get(notProject));
+        assertEquals(ExerciseProjectScanner.State.CLOSED, states.get(closed));
+        assertEquals(ExerciseProjectScanner.State.OPEN, states.get(open));
+        assertEquals(2, probeCount.get());
+    }
+
+    @Test
+    public void treatsExercisesOfACourseWithoutADirectoryAsMissing() {
+        Exercise ex = new Exercise("ex1", "nothing-downloaded");
+        assertEquals(ExerciseProjectScanner.State.MISSING, scan(ex).get(ex));
+        assertEquals(0, probeCount.get());
+    }
+
+    @Test
+    public void usesDashesForSlashesInExerciseNames() throws IOException {
+        Exercise ex = new Exercise("week1/ex1", "course");
+        createProject("course", "week1-ex1");
+        assertEquals(ExerciseProjectScanner.State.CLOSED, scan(ex).get(ex));
+    }
+
+    @Test
+    public void probesOnlyTheClosedProjectsOfALargeCourse() throws IOException {
+        // 300 exercises: 100 open, 100 closed and 100 not downloaded.
+        List<Exercise> exercises = new ArrayList<Exercise>();
+        for (int i = 0; i < 300; ++i) {
+            String name = "ex" + i;
+            exercises.add(new Exercise(name, "course"));
+            if (i < 100) {
+                openProjectDirs.add(createProject("course", name));
+            } else if (i < 200) {
+                createProject("course", name);
+            }
+        }
+
+        Map<Exercise, ExerciseProjectScanner.State> states = new ExerciseProjectScanner(projectRoot, openProjectDirs, probe).scan(exercises);
+
+        assertEquals(100, probeCount.get());
+        for (int i = 0; i < 300; ++i) {
+            ExerciseProjectScanner.State expected = i < 100 ? ExerciseProjectScanner.State.OPEN
+                    : i < 200 ? ExerciseProjectScanner.State.CLOSED
+                    : ExerciseProjectScanner.State.MISSING;
+            assertEquals(expected, states.get(exercises.get(i)));
+        }
+    }
+
+    private Map<Exercise, ExerciseProjectScanner.State> scan(Exercise... exercises) {
+        List<Exercise> list = new ArrayList<Exercise>();
+        for (Exercise ex : exercises) {
+            list.add(ex);
+        }
+        return new ExerciseProjectScanner(projectRoot, openProjectDirs, probe).scan(list);
+    }
+
+    private Path createProject(String course, String name) throws IOException {
+        Path dir = projectRoot.resolve(course).resolve(name);
+        Files.createDirectories(dir.resolve("nbproject"));
+        return dir;
+    }
+}
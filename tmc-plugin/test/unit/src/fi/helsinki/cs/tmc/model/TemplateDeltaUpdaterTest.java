@@ -0,0 +1,142 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TemplateDeltaUpdaterTest {
+    private TempTestDir tempDir;
+    private Path templateDir;
+    private Path projectDir;
+    private TemplateDeltaUpdater updater;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        templateDir = tempDir.get().toPath().resolve("template/ex1");
+        projectDir = tempDir.get().toPath().resolve("projects/ex1");
+        updater = new TemplateDeltaUpdater();
+
+        write(templateDir.resolve("src/Main.java"), "class Main {}");
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest {}");
+        write(templateDir.resolve("lib/lib.jar"), "lib");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void writesOnlyTheChangedFiles() throws IOException {
+        Path oldArchive = install("old");
+        write(templateDir.resolve("test/MainTest.java"), "class MainTest { void newTest() {} }");
+        Path newArchive = archive("new");
+
+        TemplateDeltaUpdater.Result result = updater.update(oldArchive, newArchive, projectDir);
+
+        assertEquals(1, result.getFilesWritten());
+        assertEquals(2, result.getFilesUnchanged());
+        assertEquals("class MainTest { void newTest() {} }", read(projectDir.resolve("test/MainTest.java")));
+    }
+
+    @Test
+    public void keepsStudentFiles() throws IOException {
+        Path oldArchive = install("old");
+        write(projectDir.resolve("src/Main.java"), "class Main { /* solved */ }");
+        write(templateDir.resolve("src/Main.java"), "class Main { /* new stub */ }");
+        write(templateDir.resolve("src/Helper.java"), "class Helper {}");
+        Path newArchive = archive("new");
+
+        TemplateDeltaUpdater.Result result = updater.update(oldArchive, newArchive, projectDir);
+
+        assertEquals(1, result.getStudentFilesKept());
+        assertEquals("class Main { /* solved */ }", read(projectDir.resolve("src/Main.java")));
+        assertEquals("class Helper {}", read(projectDir.resolve("src/Helper.java")));
+    }
+
+    @Test
+    public void restoresChangedTemplateFiles() throws IOException {
+        Path oldArchive = install("old");
+        write(projectDir.resolve("test/MainTest.java"), "class MainTest { /* tampered */ }");
+
+        TemplateDeltaUpdater.Result result = updater.update(oldArchive, archive("new"), projectDir);
+
+        assertEquals(1, result.getFilesWritten());
+        assertEquals("class MainTest {}", read(projectDir.resolve("test/MainTest.java")));
+    }
+
+    @Test
+    public void deletesFilesRemovedFromTheTemplateUnlessChanged() throws IOException {
+        write(templateDir.resolve("test/OldTest.java"), "class OldTest {}");
+        write(templateDir.resolve("test/OtherTest.java"), "class OtherTest {}");
+        Path oldArchive = install("old");
+        write(projectDir.resolve("test/OtherTest.java"), "class OtherTest { /* mine */ }");
+        Files.delete(templateDir.resolve("test/OldTest.java"));
+        Files.delete(templateDir.resolve("test/OtherTest.java"));
+
+        TemplateDeltaUpdater.Result result = updater.update(oldArchive, archive("new"), projectDir);
+
+        assertEquals(1, result.getFilesDeleted());
+        assertFalse(Files.exists(projectDir.resolve("test/OldTest.java")));
+        assertTrue(Files.exists(projectDir.resolve("test/OtherTest.java")));
+    }
+
+    @Test
+    public void writesFarFewerBytesThanAFullUpdate() throws IOException {
+        // A big exercise: a megabyte of bundled libraries and a handful of
+        // sources, where an update fixes one test.
+        Random random = new Random(1);
+        for (int i = 0; i < 4; ++i) {
+            byte[] jar = new byte[256 * 1024];
+            random.nextBytes(jar);
+            Files.write(templateDir.resolve("lib/lib" + i + ".jar"), jar);
+        }
+        for (int i = 0; i < 20; ++i) {
+            write(templateDir.resolve("src/Class" + i + ".java"), "class Class" + i + " {}");
+            write(templateDir.resolve("test/Class" + i + "Test.java"), "class Class" + i + "Test {}");
+        }
+        Path oldArchive = install("old");
+        write(templateDir.resolve("test/Class7Test.java"), "class Class7Test { void fixed() {} }");
+        Path newArchive = archive("new");
+
+        long fullUpdateBytes = FileUtils.sizeOfDirectory(templateDir.toFile());
+        TemplateDeltaUpdater.Result result = updater.update(oldArchive, newArchive, projectDir);
+
+        assertEquals(1, result.getFilesWritten());
+        assertTrue(result.getBytesWritten() * 1000 < fullUpdateBytes);
+    }
+
+    // Archives the template and installs it as the project.
+    private Path install(String name) throws IOException {
+        Path archive = archive(name);
+        FileUtils.copyDirectory(templateDir.toFile(), projectDir.toFile());
+        return archive;
+    }
+
+    private Path archive(String name) throws IOException {
+        Path archive = tempDir.get().toPath().resolve(name + ".zip");
+        try (OutputStream out = Files.newOutputStream(archive)) {
+            new RecursiveZipper(templateDir.toFile(), RecursiveZipper.ZIP_ALL_THE_THINGS).zipProjectSources(out);
+        }
+        return archive;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), "UTF-8");
+    }
+}
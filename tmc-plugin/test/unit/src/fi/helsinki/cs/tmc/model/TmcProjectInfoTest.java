@@ -6,6 +6,7 @@ import fi.helsinki.cs.tmc.testing.TempTestDir;
 import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -81,6 +82,65 @@ public class TmcProjectInfoTest {
         assertFalse(zd.shouldZip("MyExercise/test/Excluded.txt"));
     }
     
+    @Test
+    public void itShouldSupportGlobPatternsInTheProjectFile() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + ".tmcproject.yml"), "extra_student_files:\n  - test/**/*Included?.txt", "UTF-8");
+        
+        RecursiveZipper.ZippingDecider zd = projectInfo.getZippingDecider();
+        assertTrue(zd.shouldZip("MyExercise/test/"));
+        assertTrue(zd.shouldZip("MyExercise/test/FooIncluded1.txt"));
+        assertTrue(zd.shouldZip("MyExercise/test/deep/er/Included2.txt"));
+        assertFalse(zd.shouldZip("MyExercise/test/Excluded.txt"));
+        assertFalse(zd.shouldZip("MyExercise/excluded/"));
+    }
+    
+    @Test
+    public void itShouldNotGiveEntriesToDirectoriesEnteredOnlyForGlobPatterns() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + ".tmcproject.yml"), "extra_student_files:\n  - '**/Included*.txt'", "UTF-8");
+        
+        RecursiveZipper.ZippingDecider zd = projectInfo.getZippingDecider();
+        assertTrue(zd.shouldZip("MyExercise/excluded/"));
+        assertFalse(zd.shouldZipDirectoryEntry("MyExercise/excluded/"));
+        assertTrue(zd.shouldZipDirectoryEntry("MyExercise/src/"));
+        
+        List<String> entries = new RecursiveZipper(new File(mainDir), zd).listEntriesToZip();
+        assertFalse(entries.contains("MyExercise/excluded/"));
+        assertFalse(entries.contains("MyExercise/test/"));
+        assertTrue(entries.contains("MyExercise/src/"));
+    }
+    
+    @Test
+    public void itShouldRejectMavenBuildDirectoriesBeforeGlobPatterns() throws IOException {
+        new File(mainDir + SLASH + "pom.xml").createNewFile();
+        new File(mainDir + SLASH + "target" + SLASH + "classes").mkdirs();
+        FileUtils.write(new File(mainDir + SLASH + ".tmcproject.yml"), "extra_student_files:\n  - '**/*.txt'", "UTF-8");
+        
+        RecursiveZipper.ZippingDecider zd = projectInfo.getZippingDecider();
+        assertFalse(zd.shouldZip("MyExercise/target/"));
+        assertFalse(zd.shouldZip("MyExercise/target/classes/Foo.txt"));
+        assertFalse(zd.shouldZip("MyExercise/lib/testrunner/"));
+        assertTrue(zd.shouldZip("MyExercise/test/Excluded.txt"));
+    }
+    
+    @Test
+    public void itShouldReadTheProjectFileOnceForEachDecider() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + ".tmcproject.yml"), "extra_student_files:\n  - test/IncludedTest.txt", "UTF-8");
+        RecursiveZipper.ZippingDecider zd = projectInfo.getZippingDecider();
+        
+        FileUtils.write(new File(mainDir + SLASH + ".tmcproject.yml"), "extra_student_files:\n  - test/Other.txt", "UTF-8");
+        assertTrue(zd.shouldZip("MyExercise/test/IncludedTest.txt"));
+        assertFalse(projectInfo.getZippingDecider().shouldZip("MyExercise/test/IncludedTest.txt"));
+    }
+    
+    @Test
+    public void itShouldNotZipDirectoriesWithANoSubmitFile() throws IOException {
+        new File(mainDir + SLASH + "src" + SLASH + "subdir" + SLASH + ".tmcnosubmit").createNewFile();
+        
+        RecursiveZipper.ZippingDecider zd = projectInfo.getZippingDecider();
+        assertFalse(zd.shouldZip("MyExercise/src/subdir/"));
+        assertTrue(zd.shouldZip("MyExercise/src/"));
+    }
+    
     @Test
     public void itShouldChooseToZipEverythingInMavenProjects() throws IOException {
         new File(mainDir + SLASH + "src" + SLASH + "main" + SLASH + "java").mkdirs();
@@ -0,0 +1,97 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DocumentTextCacheTest {
+    private DocumentTextCache<Object> cache = new DocumentTextCache<Object>(20);
+
+    @Test
+    public void keepsTrackOfEdits() {
+        Object doc = new Object();
+        cache.put(doc, "hello");
+        cache.insert(doc, 5, " world");
+        cache.delete(doc, 0, 1);
+        assertEquals("ello world", cache.get(doc).toString());
+        assertEquals(20, cache.getByteFootprint());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedDocumentsWhenFull() {
+        Object a = new Object();
+        Object b = new Object();
+        Object c = new Object();
+        cache.put(a, "aaaa");
+        cache.put(b, "bbbb");
+        cache.get(a);
+        cache.put(c, "cccc");
+
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertEquals(2, cache.size());
+        assertEquals(16, cache.getByteFootprint());
+    }
+
+    @Test
+    public void tellsTheListenerAboutEvictedDocuments() {
+        final List<Object> evicted = new ArrayList<Object>();
+        cache = new DocumentTextCache<Object>(20, new DocumentTextCache.EvictionListener<Object>() {
+            @Override
+            public void evicted(Object doc) {
+                evicted.add(doc);
+            }
+        });
+        Object a = new Object();
+        Object b = new Object();
+        Object c = new Object();
+        cache.put(a, "aaaa");
+        cache.put(b, "bbbb");
+        assertTrue(evicted.isEmpty());
+        cache.put(c, "cccc");
+        assertEquals(Arrays.asList(a), evicted);
+        cache.remove(b);
+        assertEquals(Arrays.asList(a), evicted);
+    }
+
+    @Test
+    public void keepsTheLastUsedDocumentEvenIfItIsTooBig() {
+        Object a = new Object();
+        Object b = new Object();
+        cache.put(a, "aaaa");
+        cache.put(b, "this is more than twenty bytes");
+        assertFalse(cache.contains(a));
+        assertTrue(cache.contains(b));
+    }
+
+    @Test
+    public void removingAndClearingFreeSpace() {
+        Object a = new Object();
+        Object b = new Object();
+        cache.put(a, "aaaa");
+        cache.put(b, "bbbb");
+        cache.remove(a);
+        assertEquals(8, cache.getByteFootprint());
+        cache.clear();
+        assertEquals(0, cache.getByteFootprint());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void documentsAreHeldWeakly() throws InterruptedException {
+        cache = new DocumentTextCache<Object>(1000);
+        cache.put(new Object(), "garbage");
+        Object kept = new Object();
+        cache.put(kept, "kept");
+        for (int i = 0; i < 100 && cache.size() > 1; ++i) {
+            System.gc();
+            Thread.sleep(10);
+            cache.contains(kept);
+        }
+        assertEquals(1, cache.size());
+        assertEquals(8, cache.getByteFootprint());
+    }
+}
@@ -0,0 +1,137 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.List;
+import name.fraser.neil.plaintext.DiffMatchPatch;
+import name.fraser.neil.plaintext.DiffMatchPatch.Patch;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class EditCoalescerTest {
+    private EventReceiver receiver;
+    private EditCoalescer coalescer;
+    private Exercise exercise;
+    private DiffMatchPatch dmp = new DiffMatchPatch();
+    private String sequentiallyPatched;
+
+    @Before
+    public void setUp() {
+        receiver = mock(EventReceiver.class);
+        coalescer = new EditCoalescer(receiver);
+        exercise = new Exercise("ex", "course");
+    }
+
+    @Test
+    public void consecutiveEditsToAFileAreMerged() throws Exception {
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch1\n", false);
+        coalescer.addEdit(exercise, "src/Foo.java", false, "patch2\n", false);
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch3\n", false);
+        verifyZeroInteractions(receiver);
+
+        coalescer.flush();
+        List<LoggableEvent> events = sentEvents(1);
+        assertEquals("text_insert", events.get(0).getEventType());
+        String data = dataOf(events.get(0));
+        assertTrue(data.indexOf("patch1") < data.indexOf("patch2"));
+        assertTrue(data.indexOf("patch2") < data.indexOf("patch3"));
+        assertTrue(data.contains("coalesced_edits"));
+    }
+
+    @Test
+    public void editsAreSentAfterTheWindow() throws Exception {
+        coalescer.addEdit(exercise, "src/Foo.java", false, "patch\n", false);
+        verify(receiver, timeout(EditCoalescer.WINDOW * 3)).receiveEvent(any(LoggableEvent.class));
+        assertEquals("text_remove", sentEvents(1).get(0).getEventType());
+    }
+
+    @Test
+    public void anEditToAnotherFileSendsThePendingEdits() throws Exception {
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch1\n", false);
+        coalescer.addEdit(exercise, "src/Bar.java", true, "patch2\n", false);
+        assertTrue(dataOf(sentEvents(1).get(0)).contains("src/Foo.java"));
+    }
+
+    @Test
+    public void separateEventsComeAfterThePendingEdits() throws Exception {
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch1\n", false);
+        coalescer.sendSeparately(exercise, "text_paste", "{}");
+
+        List<LoggableEvent> events = sentEvents(2);
+        assertEquals("text_insert", events.get(0).getEventType());
+        assertEquals("text_paste", events.get(1).getEventType());
+    }
+
+    @Test
+    public void aFullDocumentEditIsNotMergedIntoADeltaEdit() throws Exception {
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch1\n", false);
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch2\n", true);
+        coalescer.addEdit(exercise, "src/Foo.java", true, "patch3\n", false);
+        coalescer.flush();
+
+        List<LoggableEvent> events = sentEvents(3);
+        assertFalse(descriptionOf(events.get(0)).get("full_document").getAsBoolean());
+        assertTrue(descriptionOf(events.get(1)).get("full_document").getAsBoolean());
+        assertFalse(descriptionOf(events.get(2)).get("full_document").getAsBoolean());
+    }
+
+    @Test
+    public void applyingTheMergedPatchesGivesTheSameTextAsApplyingTheEditsOneByOne() throws Exception {
+        String original = "public class Foo {\n    int x = 1;\n    int y = 2;\n}\n";
+        sequentiallyPatched = original;
+
+        // Later edits go both before and after the earlier ones, and to both ends of the text.
+        String text = original;
+        text = insert(text, text.indexOf("y = 2"), "yy");
+        text = remove(text, text.indexOf("x = 1"), 4);
+        text = insert(text, 0, "// ");
+        text = insert(text, text.length(), "// end\n");
+        text = remove(text, text.indexOf("int y"), 4);
+        coalescer.flush();
+        assertEquals(text, sequentiallyPatched);
+
+        String merged = descriptionOf(sentEvents(1).get(0)).get("patches").getAsString();
+        Object[] result = dmp.patch_apply(new LinkedList<Patch>(dmp.patch_fromText(merged)), original);
+        assertEquals(text, result[0]);
+        for (boolean applied : (boolean[]) result[1]) {
+            assertTrue(applied);
+        }
+    }
+
+    private String insert(String text, int offset, String inserted) {
+        addEdit(true, EditPatches.forInsert(dmp, text, offset, inserted));
+        return text.substring(0, offset) + inserted + text.substring(offset);
+    }
+
+    private String remove(String text, int offset, int length) {
+        addEdit(false, EditPatches.forRemove(dmp, text, offset, length));
+        return text.substring(0, offset) + text.substring(offset + length);
+    }
+
+    private void addEdit(boolean isInsert, List<Patch> patches) {
+        sequentiallyPatched = (String) dmp.patch_apply(new LinkedList<Patch>(patches), sequentiallyPatched)[0];
+        coalescer.addEdit(exercise, "src/Foo.java", isInsert, dmp.patch_toText(patches), false);
+    }
+
+    private JsonObject descriptionOf(LoggableEvent event) throws UnsupportedEncodingException {
+        return new JsonParser().parse(dataOf(event)).getAsJsonObject();
+    }
+
+    private List<LoggableEvent> sentEvents(int count) {
+        ArgumentCaptor<LoggableEvent> captor = ArgumentCaptor.forClass(LoggableEvent.class);
+        verify(receiver, times(count)).receiveEvent(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private String dataOf(LoggableEvent event) throws UnsupportedEncodingException {
+        return new String(event.getData(), "UTF-8");
+    }
+}
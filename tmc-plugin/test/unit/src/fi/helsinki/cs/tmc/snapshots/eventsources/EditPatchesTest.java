@@ -0,0 +1,44 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.util.LinkedList;
+import java.util.List;
+import name.fraser.neil.plaintext.DiffMatchPatch;
+import name.fraser.neil.plaintext.DiffMatchPatch.Patch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EditPatchesTest {
+    private static final String TEXT = "public class Foo {\n    int x = 1;\n}\n";
+    private DiffMatchPatch dmp = new DiffMatchPatch();
+
+    @Test
+    public void insertPatchAppliesToTheOldText() {
+        int offset = TEXT.indexOf("1;");
+        List<Patch> patches = EditPatches.forInsert(dmp, TEXT, offset, "2");
+        assertEquals(TEXT.substring(0, offset) + "2" + TEXT.substring(offset), apply(patches, TEXT));
+    }
+
+    @Test
+    public void removePatchAppliesToTheOldText() {
+        int offset = TEXT.indexOf("int");
+        List<Patch> patches = EditPatches.forRemove(dmp, TEXT, offset, 4);
+        assertEquals(TEXT.substring(0, offset) + TEXT.substring(offset + 4), apply(patches, TEXT));
+    }
+
+    @Test
+    public void editsAtTheEdgesOfTheDocumentWork() {
+        assertEquals("x" + TEXT, apply(EditPatches.forInsert(dmp, TEXT, 0, "x"), TEXT));
+        assertEquals(TEXT + "x", apply(EditPatches.forInsert(dmp, TEXT, TEXT.length(), "x"), TEXT));
+        assertEquals("abc", apply(EditPatches.forInsert(dmp, "", 0, "abc"), ""));
+        assertEquals("", apply(EditPatches.forRemove(dmp, "abc", 0, 3), "abc"));
+    }
+
+    @Test
+    public void emptyEditGivesNoPatches() {
+        assertTrue(EditPatches.forRemove(dmp, TEXT, 3, 0).isEmpty());
+    }
+
+    private String apply(List<Patch> patches, String text) {
+        return (String) dmp.patch_apply(new LinkedList<Patch>(patches), text)[0];
+    }
+}
@@ -0,0 +1,65 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventPipelineTest {
+    @Test
+    public void tasksAreRunInOrderBeforeClosing() {
+        EventPipeline pipeline = new EventPipeline();
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 100; ++i) {
+            final int n = i;
+            pipeline.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(n);
+                }
+            });
+        }
+        pipeline.close();
+
+        assertEquals(100, ran.size());
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void failingTasksDoNotStopThePipeline() {
+        EventPipeline pipeline = new EventPipeline();
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("test");
+            }
+        });
+        pipeline.submit(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("second");
+            }
+        });
+        pipeline.close();
+        assertEquals(1, ran.size());
+    }
+
+    @Test
+    public void recordsListenerTimes() {
+        EventPipeline pipeline = new EventPipeline();
+        pipeline.recordListenerTime("a", System.nanoTime() - 2000);
+        pipeline.recordListenerTime("a", System.nanoTime() - 1000);
+        pipeline.recordListenerTime("b", System.nanoTime());
+
+        EventPipeline.ListenerTime a = pipeline.getListenerTimes().get("a");
+        assertEquals(2, a.getCalls());
+        assertTrue(a.getMaxNanos() >= 2000);
+        assertTrue(a.getTotalNanos() >= 3000);
+        assertEquals(1, pipeline.getListenerTimes().get("b").getCalls());
+        pipeline.close();
+    }
+}
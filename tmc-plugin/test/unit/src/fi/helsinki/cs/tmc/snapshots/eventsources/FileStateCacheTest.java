@@ -0,0 +1,62 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileStateCacheTest {
+    private TempTestDir tempDir;
+    private File file;
+    private FileStateCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        file = new File(tempDir.get(), "Foo.java");
+        FileUtils.write(file, "class Foo {}", "UTF-8");
+        cache = new FileStateCache();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void anUntouchedFileGivesTheSameState() {
+        FileStateCache.FileState state = cache.get("P/Foo.java", file);
+        assertSame(state, cache.get("P/Foo.java", file));
+    }
+
+    @Test
+    public void aTouchedFileHasTheSameContent() {
+        FileStateCache.FileState state = cache.get("P/Foo.java", file);
+        file.setLastModified(file.lastModified() - 10000);
+        FileStateCache.FileState touched = cache.get("P/Foo.java", file);
+        assertNotSame(state, touched);
+        assertTrue(touched.sameContentAs(state));
+    }
+
+    @Test
+    public void aChangedFileHasDifferentContent() throws IOException {
+        FileStateCache.FileState state = cache.get("P/Foo.java", file);
+        FileUtils.write(file, "class Foo { int x; }", "UTF-8");
+        assertFalse(cache.get("P/Foo.java", file).sameContentAs(state));
+        assertFalse(state.sameContentAs(null));
+    }
+
+    @Test
+    public void forgottenFilesAreHashedAgain() {
+        FileStateCache.FileState state = cache.get("P/Foo.java", file);
+        cache.retainOnly(Arrays.asList("P/Bar.java"));
+        FileStateCache.FileState again = cache.get("P/Foo.java", file);
+        assertNotSame(state, again);
+        assertTrue(again.sameContentAs(state));
+    }
+}
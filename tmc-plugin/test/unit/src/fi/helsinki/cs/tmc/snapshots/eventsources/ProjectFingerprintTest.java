@@ -0,0 +1,96 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProjectFingerprintTest {
+    private TempTestDir tempDir;
+    private File rootParent;
+    private ProjectFingerprint fingerprint;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        rootParent = tempDir.get();
+        new File(rootParent, "P/src").mkdirs();
+        write("P/src/Foo.java", "class Foo {}");
+        write("P/src/Bar.java", "class Bar {}");
+        fingerprint = new ProjectFingerprint();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void theFirstUpdateIsAChange() {
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    @Test
+    public void untouchedFilesAreNoChange() {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        assertFalse(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    @Test
+    public void touchingAFileWithoutChangingItIsNoChange() throws IOException {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        touch("P/src/Foo.java");
+        assertFalse(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    @Test
+    public void changedContentIsAChange() throws IOException {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        write("P/src/Foo.java", "class Foo { int x; }");
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+        assertFalse(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    @Test
+    public void changedContentOfTheSameSizeIsAChange() throws IOException {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        write("P/src/Foo.java", "class Fuu {}");
+        touch("P/src/Foo.java");
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    @Test
+    public void addedAndRemovedFilesAreAChange() throws IOException {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java")));
+
+        write("P/src/Baz.java", "class Baz {}");
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Baz.java")));
+    }
+
+    @Test
+    public void anInvalidatedFingerprintIsAChange() {
+        fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java"));
+        fingerprint.invalidate();
+        assertTrue(fingerprint.update(rootParent, paths("P/src/Foo.java", "P/src/Bar.java")));
+    }
+
+    private List<String> paths(String... files) {
+        return Arrays.asList(files);
+    }
+
+    private void write(String path, String content) throws IOException {
+        FileUtils.write(new File(rootParent, path), content, "UTF-8");
+    }
+
+    private void touch(String path) {
+        File file = new File(rootParent, path);
+        file.setLastModified(file.lastModified() + 5000);
+    }
+}
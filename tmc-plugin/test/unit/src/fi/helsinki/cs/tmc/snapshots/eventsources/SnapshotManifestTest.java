@@ -0,0 +1,127 @@
+package fi.helsinki.cs.tmc.snapshots.eventsources;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.zip.RecursiveZipper;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SnapshotManifestTest {
+    private static final String SLASH = File.separator;
+    private TempTestDir tempDir;
+    private File mainDir;
+    private SnapshotManifest manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        mainDir = new File(tempDir.getPath() + SLASH + "MyExercise");
+        new File(mainDir, "src").mkdirs();
+        write("src/One.java", "one");
+        write("src/Two.java", "two");
+        manifest = new SnapshotManifest();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+
+    @Test
+    public void firstSnapshotIsFull() throws IOException {
+        assertTrue(manifest.isFullSnapshotDue());
+        List<String> files = fileEntries(snapshot());
+        assertTrue(files.contains("MyExercise/src/One.java"));
+        assertTrue(files.contains("MyExercise/src/Two.java"));
+    }
+
+    @Test
+    public void deltaContainsOnlyChangedAndAddedFiles() throws IOException {
+        snapshot();
+        assertFalse(manifest.isFullSnapshotDue());
+
+        write("src/One.java", "one changed");
+        write("src/Three.java", "three");
+        List<String> files = fileEntries(snapshot());
+        assertEquals(2, files.size());
+        assertTrue(files.contains("MyExercise/src/One.java"));
+        assertTrue(files.contains("MyExercise/src/Three.java"));
+    }
+
+    @Test
+    public void touchedFilesWithSameContentAreNotIncluded() throws IOException {
+        snapshot();
+        File file = new File(mainDir, "src" + SLASH + "Two.java");
+        file.setLastModified(file.lastModified() - 10000);
+        assertTrue(fileEntries(snapshot()).isEmpty());
+    }
+
+    @Test
+    public void reportsDeletedFiles() throws IOException {
+        snapshot();
+        new File(mainDir, "src" + SLASH + "Two.java").delete();
+
+        RecursiveZipper zipper = new RecursiveZipper(mainDir,
+                manifest.beginSnapshot(mainDir.getParentFile(), RecursiveZipper.ZIP_ALL_THE_THINGS, false));
+        zipper.zipProjectSources();
+        List<String> deleted = manifest.finishSnapshot(false);
+        assertEquals(1, deleted.size());
+        assertEquals("MyExercise/src/Two.java", deleted.get(0));
+    }
+
+    @Test
+    public void fullSnapshotIsTakenPeriodically() throws IOException {
+        snapshot();
+        for (int i = 1; i < SnapshotManifest.FULL_SNAPSHOT_INTERVAL; ++i) {
+            assertFalse(manifest.isFullSnapshotDue());
+            snapshot();
+        }
+        assertTrue(manifest.isFullSnapshotDue());
+    }
+
+    @Test
+    public void nextSnapshotIsFullAfterInvalidation() throws IOException {
+        snapshot();
+        manifest.invalidate();
+        assertTrue(manifest.isFullSnapshotDue());
+        assertEquals(2, fileEntries(snapshot()).size());
+    }
+
+    private byte[] snapshot() throws IOException {
+        boolean full = manifest.isFullSnapshotDue();
+        RecursiveZipper.ZippingDecider decider =
+                manifest.beginSnapshot(mainDir.getParentFile(), RecursiveZipper.ZIP_ALL_THE_THINGS, full);
+        byte[] data = new RecursiveZipper(mainDir, decider).zipProjectSources();
+        manifest.finishSnapshot(full);
+        return data;
+    }
+
+    private void write(String path, String content) throws IOException {
+        FileUtils.write(new File(mainDir, path.replace("/", SLASH)), content, "UTF-8");
+    }
+
+    private List<String> fileEntries(byte[] zipData) throws IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent;
+            while ((zent = zis.getNextEntry()) != null) {
+                if (!zent.isDirectory()) {
+                    result.add(zent.getName());
+                }
+            }
+        } finally {
+            zis.close();
+        }
+        return result;
+    }
+}
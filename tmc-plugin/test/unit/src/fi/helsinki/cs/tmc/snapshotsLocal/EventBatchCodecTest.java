@@ -0,0 +1,93 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import fi.helsinki.cs.tmc.utilities.ByteArrayGsonSerializer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventBatchCodecTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private EventBatchCodec codec = new EventBatchCodec();
+    private Exercise exercise = new Exercise("ex", "course");
+    private Gson gson = new GsonBuilder()
+            .registerTypeAdapter(byte[].class, new ByteArrayGsonSerializer())
+            .create();
+
+    @Test
+    public void eventsSurviveARoundTrip() throws IOException {
+        List<LoggableEvent> events = new ArrayList<LoggableEvent>();
+        events.add(event("text_insert", "{\"file\":\"src/Foo.java\"}"));
+        events.add(event("window_event", "{}"));
+        events.add(event("text_insert", "{\"file\":\"src/Bar.java\"}"));
+        LoggableEvent other = new LoggableEvent(new Exercise("other-ex", "other-course"), "text_remove", "{}".getBytes(UTF8));
+        other.addMetadata("host_id", "fedcba9876543210fedcba9876543210");
+        other.addMetadata("cause", "test");
+        events.add(other);
+
+        List<LoggableEvent> decoded = codec.decode(codec.encode(events));
+
+        assertEquals(4, decoded.size());
+        for (int i = 0; i < events.size(); ++i) {
+            LoggableEvent original = events.get(i);
+            assertEquals(original.getCourseName(), decoded.get(i).getCourseName());
+            assertEquals(original.getExerciseName(), decoded.get(i).getExerciseName());
+            assertEquals(original.getEventType(), decoded.get(i).getEventType());
+            assertArrayEquals(original.getData(), decoded.get(i).getData());
+            // Covers every serialized field, including the metadata and the time.
+            assertEquals(gson.toJsonTree(original), gson.toJsonTree(decoded.get(i)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void garbageIsRejected() throws IOException {
+        codec.decode("not a batch".getBytes(UTF8));
+    }
+
+    /**
+     * An hour of typing and window switching, in the batch sizes the spool
+     * writes, should take a fraction of the space of the events one by one.
+     */
+    @Test
+    public void anHourOfEditingTakesLessSpace() throws IOException {
+        long plainBytes = 0;
+        long batchedBytes = 0;
+        List<LoggableEvent> batch = new ArrayList<LoggableEvent>();
+        for (int second = 0; second < 3600; ++second) {
+            LoggableEvent event;
+            if (second % 60 == 0) {
+                event = event("window_event", "{\"new_state\":\"activated\",\"file\":\"src/Main.java\"}");
+            } else {
+                event = event("text_insert", "{\"file\":\"src/Main.java\",\"patches\":\"@@ -" + second
+                        + ",6 +" + second + ",7 @@\\n     sum\\n+" + (char) ('a' + second % 26)
+                        + "\\n  += i;\\n\",\"full_document\":false}");
+            }
+            plainBytes += gson.toJson(event).getBytes(UTF8).length;
+            batch.add(event);
+            if (batch.size() == SpoolingEventReceiver.WRITE_BATCH_SIZE) {
+                batchedBytes += codec.encode(batch).length;
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batchedBytes += codec.encode(batch).length;
+        }
+
+        assertTrue(batchedBytes * 3 < plainBytes);
+    }
+
+    private LoggableEvent event(String type, String data) {
+        LoggableEvent event = new LoggableEvent(exercise, type, data.getBytes(UTF8));
+        event.addMetadata("host_id", "0123456789abcdef0123456789abcdef");
+        return event;
+    }
+}
@@ -0,0 +1,167 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventSpoolTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TempTestDir tempDir;
+    private Path dir;
+    private EventSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        dir = tempDir.get().toPath().resolve("spool");
+        spool = new EventSpool(dir, 100, 1000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spool.close();
+        tempDir.destroy();
+    }
+
+    @Test
+    public void recordsAreReturnedInOrderUntilTaken() throws IOException {
+        spool.append(bytes("one"));
+        spool.append(bytes("two"));
+        spool.append(bytes("three"));
+
+        assertEquals(list("one", "two"), strings(spool.peek(2)));
+        assertEquals(list("one", "two"), strings(spool.peek(2)));
+
+        spool.take(2);
+        assertEquals(list("three"), strings(spool.peek(10)));
+    }
+
+    @Test
+    public void recordsSpanSegments() throws IOException {
+        for (int i = 0; i < 20; ++i) {
+            spool.append(bytes("record " + i));
+        }
+        assertTrue(segmentCount() > 1);
+
+        List<String> all = strings(spool.peek(100));
+        assertEquals(20, all.size());
+        assertEquals("record 19", all.get(19));
+
+        spool.take(20);
+        assertTrue(spool.peek(100).isEmpty());
+        assertEquals(1, segmentCount());
+    }
+
+    @Test
+    public void untakenRecordsSurviveReopening() throws IOException {
+        for (int i = 0; i < 20; ++i) {
+            spool.append(bytes("record " + i));
+        }
+        spool.take(15);
+        spool.close();
+
+        spool = new EventSpool(dir, 100, 1000);
+        spool.append(bytes("new"));
+        assertEquals(list("record 15", "record 16", "record 17", "record 18", "record 19", "new"),
+                strings(spool.peek(100)));
+    }
+
+    @Test
+    public void aBrokenTailIsIgnoredOnReopening() throws IOException {
+        spool.append(bytes("one"));
+        spool.append(bytes("two"));
+        spool.close();
+
+        Path segment = onlySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        spool = new EventSpool(dir, 100, 1000);
+        spool.append(bytes("three"));
+        assertEquals(list("one", "three"), strings(spool.peek(100)));
+    }
+
+    @Test
+    public void aCorruptRecordIsNotReturned() throws IOException {
+        spool.append(bytes("one"));
+        spool.append(bytes("two"));
+        spool.close();
+
+        Path segment = onlySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+
+        spool = new EventSpool(dir, 100, 1000);
+        assertEquals(list("one"), strings(spool.peek(100)));
+    }
+
+    @Test
+    public void oldestRecordsAreDroppedWhenFull() throws IOException {
+        for (int i = 0; i < 200; ++i) {
+            spool.append(bytes("record " + i));
+        }
+        assertTrue(spool.getSize() <= 1000);
+        assertTrue(spool.getDroppedRecords() > 0);
+
+        List<String> left = strings(spool.peek(1000));
+        assertEquals(200 - spool.getDroppedRecords(), left.size());
+        assertEquals("record 199", left.get(left.size() - 1));
+    }
+
+    private int segmentCount() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*")) {
+            for (Path p : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Path onlySegment() throws IOException {
+        Path result = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*")) {
+            for (Path p : stream) {
+                if (Files.size(p) > 0) {
+                    assertNull(result);
+                    result = p;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    private static List<String> strings(List<byte[]> records) {
+        List<String> result = new ArrayList<String>();
+        for (byte[] record : records) {
+            result.add(new String(record, UTF8));
+        }
+        return result;
+    }
+
+    private static List<String> list(String... items) {
+        List<String> result = new ArrayList<String>();
+        for (String item : items) {
+            result.add(item);
+        }
+        return result;
+    }
+}
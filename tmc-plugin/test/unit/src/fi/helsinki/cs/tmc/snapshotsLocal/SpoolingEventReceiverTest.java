@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.snapshotsLocal;
+
+import fi.helsinki.cs.tmc.core.domain.Exercise;
+import fi.helsinki.cs.tmc.snapshots.EventReceiver;
+import fi.helsinki.cs.tmc.snapshots.LoggableEvent;
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SpoolingEventReceiverTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BATCHES = 100;
+
+    private TempTestDir tempDir;
+    private EventSpool spool;
+    private EventReceiver sendBuffer;
+    private SpoolingEventReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        spool = new EventSpool(tempDir.get().toPath().resolve("spool"));
+        EventBatchCodec codec = new EventBatchCodec();
+        Exercise exercise = new Exercise("ex", "course");
+        for (int i = 0; i < BATCHES; ++i) {
+            List<LoggableEvent> batch = new ArrayList<LoggableEvent>();
+            for (int j = 0; j < SpoolingEventReceiver.WRITE_BATCH_SIZE; ++j) {
+                batch.add(new LoggableEvent(exercise, "text_insert", "{}".getBytes(UTF8)));
+            }
+            spool.append(codec.encode(batch));
+        }
+        sendBuffer = mock(EventReceiver.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        receiver.close();
+        tempDir.destroy();
+    }
+
+    @Test
+    public void passesEventsOnOnlyWhileTheSendBufferHasRoom() throws Exception {
+        int max = SpoolingEventReceiver.MAX_BUFFERED_EVENTS;
+        int batch = SpoolingEventReceiver.WRITE_BATCH_SIZE;
+        receiver = new SpoolingEventReceiver(spool, sendBuffer);
+
+        verify(sendBuffer, timeout(5000).atLeast(max)).receiveEvent(any(LoggableEvent.class));
+        Thread.sleep(200);
+        verify(sendBuffer, atMost(max + batch)).receiveEvent(any(LoggableEvent.class));
+        assertTrue(receiver.getSpoolBytes() > 0);
+
+        // The buffer sent everything.
+        receiver.sendBufferSaved(0);
+        verify(sendBuffer, timeout(5000).atLeast(2 * max)).receiveEvent(any(LoggableEvent.class));
+        Thread.sleep(200);
+        verify(sendBuffer, atMost(2 * max + 2 * batch)).receiveEvent(any(LoggableEvent.class));
+
+        // The buffer couldn't send anything.
+        receiver.sendBufferSaved(max);
+        Thread.sleep(200);
+        verify(sendBuffer, atMost(2 * max + 2 * batch)).receiveEvent(any(LoggableEvent.class));
+    }
+}
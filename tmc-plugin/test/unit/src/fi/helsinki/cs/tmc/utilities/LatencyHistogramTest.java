@@ -0,0 +1,23 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void countsDurationsInBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(50000);
+
+        Map<String, Long> counts = histogram.getCounts();
+        assertEquals(2, (long) counts.get("<= 10 ms"));
+        assertEquals(1, (long) counts.get("<= 30 ms"));
+        assertEquals(0, (long) counts.get("<= 100 ms"));
+        assertEquals(1, (long) counts.get("> 10000 ms"));
+        assertEquals(4, histogram.getTotalCount());
+    }
+}
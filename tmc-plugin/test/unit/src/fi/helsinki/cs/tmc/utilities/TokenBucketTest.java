@@ -0,0 +1,40 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsABurstAndThenTheRate() {
+        TokenBucket bucket = new TokenBucket(3, 2, 0);
+        assertTrue(bucket.tryTake(0));
+        assertTrue(bucket.tryTake(0));
+        assertTrue(bucket.tryTake(0));
+        assertFalse(bucket.tryTake(0));
+
+        assertTrue(bucket.tryTake(SECOND / 2));
+        assertFalse(bucket.tryTake(SECOND / 2));
+    }
+
+    @Test
+    public void doesNotSaveMoreThanTheCapacity() {
+        TokenBucket bucket = new TokenBucket(2, 1, 0);
+        long later = 100 * SECOND;
+        assertTrue(bucket.tryTake(later));
+        assertTrue(bucket.tryTake(later));
+        assertFalse(bucket.tryTake(later));
+    }
+
+    @Test
+    public void reservingTellsHowLongToWait() {
+        TokenBucket bucket = new TokenBucket(1, 2, 0);
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(500, bucket.reserve(0));
+        assertEquals(1000, bucket.reserve(0));
+        assertFalse(bucket.tryTake(SECOND));
+        assertTrue(bucket.tryTake(2 * SECOND));
+    }
+}
@@ -0,0 +1,67 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PathGlobSetTest {
+    @Test
+    public void emptySetMatchesNothing() {
+        PathGlobSet set = PathGlobSet.compile(Collections.<String>emptyList());
+        assertTrue(set.isEmpty());
+        assertFalse(set.matches("foo"));
+        assertFalse(set.mayMatchBelow("foo/"));
+    }
+
+    @Test
+    public void plainPatternsMatchExactly() {
+        PathGlobSet set = PathGlobSet.compile(Arrays.asList("test/Foo.java", "lib/"));
+        assertTrue(set.matches("test/Foo.java"));
+        assertTrue(set.matches("lib"));
+        assertTrue(set.matches("lib/"));
+        assertFalse(set.matches("test/Foo.javax"));
+        assertFalse(set.matches("test"));
+        assertFalse(set.matches("x/test/Foo.java"));
+    }
+
+    @Test
+    public void singleStarAndQuestionMarkDoNotCrossSlashes() {
+        PathGlobSet set = PathGlobSet.compile(Arrays.asList("res/*.png", "res/icon?.gif"));
+        assertTrue(set.matches("res/a.png"));
+        assertTrue(set.matches("res/.png"));
+        assertFalse(set.matches("res/sub/a.png"));
+        assertTrue(set.matches("res/icon1.gif"));
+        assertFalse(set.matches("res/icon12.gif"));
+        assertFalse(set.matches("res/a.png.bak"));
+    }
+
+    @Test
+    public void doubleStarMatchesAnyNumberOfSegments() {
+        PathGlobSet set = PathGlobSet.compile(Arrays.asList("gen/**/*.txt", "**/keep.me"));
+        assertTrue(set.matches("gen/a.txt"));
+        assertTrue(set.matches("gen/x/y/z/a.txt"));
+        assertFalse(set.matches("gen/x/a.png"));
+        assertTrue(set.matches("keep.me"));
+        assertTrue(set.matches("a/b/keep.me"));
+    }
+
+    @Test
+    public void specialCharactersAreLiteral() {
+        PathGlobSet set = PathGlobSet.compile(Arrays.asList("a+b/(c)*.[x]"));
+        assertTrue(set.matches("a+b/(c)foo.[x]"));
+        assertFalse(set.matches("aab/(c)foo.[x]"));
+    }
+
+    @Test
+    public void tellsWhichDirectoriesMayContainMatches() {
+        PathGlobSet set = PathGlobSet.compile(Arrays.asList("test/data/*.txt", "gen/**"));
+        assertTrue(set.mayMatchBelow("test/"));
+        assertTrue(set.mayMatchBelow("test/data/"));
+        assertFalse(set.mayMatchBelow("test/other/"));
+        assertFalse(set.mayMatchBelow("test/data/sub/"));
+        assertFalse(set.mayMatchBelow("src/"));
+        assertTrue(set.mayMatchBelow("gen/"));
+        assertTrue(set.mayMatchBelow("gen/a/b/"));
+    }
+}
@@ -1,13 +1,19 @@
 package fi.helsinki.cs.tmc.utilities.zip;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import fi.helsinki.cs.tmc.testing.TempTestDir;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -69,6 +75,90 @@ public class RecursiveZipperTest {
         }
     }
 
+    @Test
+    public void itShouldZipIntoAGivenStreamWithoutClosingIt() throws IOException {
+        RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        final boolean[] closed = { false };
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        zipper.zipProjectSources(out);
+        
+        assertFalse(closed[0]);
+        assertEquals(zipEntryNames(zipper.zipProjectSources()), zipEntryNames(out.toByteArray()));
+        assertTrue(zipEntryNames(out.toByteArray()).contains("MyExercise/src/subdir/Included2.txt"));
+    }
+
+    @Test
+    public void parallelModeShouldProduceTheSameEntriesInAStableOrder() throws IOException {
+        FileUtils.write(new File(mainDir + SLASH + "src" + SLASH + "Included1.txt"), "some content", "UTF-8");
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(String zipPath) {
+                return !zipPath.equals("MyExercise/excluded/");
+            }
+        };
+        RecursiveZipper serial = new RecursiveZipper(new File(mainDir), decider);
+        RecursiveZipper parallel = new RecursiveZipper(new File(mainDir), decider);
+        parallel.setParallel(true);
+        
+        List<String> expected = zipEntryNames(serial.zipProjectSources());
+        Collections.sort(expected);
+        byte[] parallelZip = parallel.zipProjectSources();
+        assertEquals(expected, zipEntryNames(parallelZip));
+        assertEquals(expected, zipEntryNames(parallel.zipProjectSources()));
+        assertEquals("some content", zipEntryContent(parallelZip, "MyExercise/src/Included1.txt"));
+    }
+
+    @Test
+    public void bothModesShouldLeaveOutDirectoryEntriesTheDeciderRejects() throws IOException {
+        RecursiveZipper.ZippingDecider decider = new RecursiveZipper.ZippingDecider() {
+            @Override
+            public boolean shouldZip(String zipPath) {
+                return true;
+            }
+
+            @Override
+            public boolean shouldZipDirectoryEntry(String dirZipPath) {
+                return !dirZipPath.equals("MyExercise/excluded/");
+            }
+        };
+        RecursiveZipper serial = new RecursiveZipper(new File(mainDir), decider);
+        RecursiveZipper parallel = new RecursiveZipper(new File(mainDir), decider);
+        parallel.setParallel(true);
+
+        for (RecursiveZipper zipper : new RecursiveZipper[] { serial, parallel }) {
+            List<String> entries = zipEntryNames(zipper.zipProjectSources());
+            assertTrue(entries.contains("MyExercise/"));
+            assertTrue(entries.contains("MyExercise/src/"));
+            assertFalse(entries.contains("MyExercise/excluded/"));
+            assertTrue(entries.contains("MyExercise/excluded/Foo.txt"));
+        }
+    }
+
+    @Test
+    public void bothModesShouldFailOnAFileTheyCannotRead() throws IOException {
+        Files.createSymbolicLink(new File(mainDir + SLASH + "src" + SLASH + "loop").toPath(), Paths.get(".."));
+        RecursiveZipper serial = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        RecursiveZipper parallel = new RecursiveZipper(new File(mainDir), RecursiveZipper.ZIP_ALL_THE_THINGS);
+        parallel.setParallel(true);
+
+        try {
+            serial.zipProjectSources();
+            fail("Serial mode should have failed on the symlink loop.");
+        } catch (IOException expected) {
+        }
+        try {
+            parallel.zipProjectSources();
+            fail("Parallel mode should have failed on the symlink loop.");
+        } catch (IOException expected) {
+        }
+    }
+
     private List<String> getZipEntries(RecursiveZipper.ZippingDecider decider) throws IOException {
         RecursiveZipper zipper = new RecursiveZipper(new File(mainDir), decider);
         byte[] zipData = zipper.zipProjectSources();
@@ -88,4 +178,19 @@ public class RecursiveZipperTest {
         }
         return result;
     }
+
+    private String zipEntryContent(byte[] zipData, String entryName) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+        try {
+            ZipEntry zent;
+            while ((zent = zis.getNextEntry()) != null) {
+                if (zent.getName().equals(entryName)) {
+                    return IOUtils.toString(zis, "UTF-8");
+                }
+            }
+        } finally {
+            zis.close();
+        }
+        return null;
+    }
 }